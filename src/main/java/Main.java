@@ -1,11 +1,28 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.security.ProtectionDomain;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 
 public class Main {
+
+	private static final Logger logger = Log.getLogger(Main.class);
+
+	// only jetty is on the classpath here: read the webapp config file directly
+	private static final String CONFIG = ".workshare/api-entity/config.properties";
+
 	public static void main(String[] args) throws Exception {
 
 		int port = 8002;
@@ -14,10 +31,34 @@ public class Main {
 		} catch (Exception ignore) {
 		}
 
+		Properties config = loadConfig();
+
 		Server server = new Server();
 
+		int queued = intValue(config, "http.threads.queue", 0);
+		BlockingQueue<Runnable> queue = (queued > 0) ? new ArrayBlockingQueue<Runnable>(
+				queued) : new LinkedBlockingQueue<Runnable>();
+		QueuedThreadPool threads = new QueuedThreadPool(queue);
+		threads.setMinThreads(intValue(config, "http.threads.min", 8));
+		threads.setMaxThreads(intValue(config, "http.threads.max", 254));
+		threads.setMaxIdleTimeMs(intValue(config, "http.threads.idle", 60000));
+		server.setThreadPool(threads);
+
+		// in this version of jetty each acceptor drives a selector as well
 		SelectChannelConnector connector = new SelectChannelConnector();
 		connector.setPort(port);
+		int acceptors = intValue(config, "http.acceptors", 0);
+		if (acceptors > 0) {
+			connector.setAcceptors(acceptors);
+		}
+		int acceptQueue = intValue(config, "http.accept.queue", 0);
+		if (acceptQueue > 0) {
+			connector.setAcceptQueueSize(acceptQueue);
+		}
+		// idle keep-alive connections are closed sooner when low on threads
+		connector.setMaxIdleTime(intValue(config, "http.idle.timeout", 60000));
+		connector.setLowResourcesMaxIdleTime(intValue(config,
+				"http.idle.low", 5000));
 		server.addConnector(connector);
 
 		ProtectionDomain domain = Main.class.getProtectionDomain();
@@ -25,9 +66,44 @@ public class Main {
 		WebAppContext webapp = new WebAppContext();
 		webapp.setContextPath("/");
 		webapp.setWar(location.toExternalForm());
+		// read by ThreadPoolMetrics, in the webapp
+		webapp.setAttribute("http.threads.pool", threads);
+		webapp.setAttribute("http.threads.queue", queue);
 		server.setHandler(webapp);
 
 		server.start();
 		server.join();
 	}
+
+	/**
+	 * @return the config file of the webapp, overridden by the system
+	 *         properties
+	 */
+	private static Properties loadConfig() {
+		Properties config = new Properties();
+		File file = new File(System.getProperty("user.home"), CONFIG);
+		if (file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					config.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException ex) {
+				logger.warn("Unable to read config file " + file, ex);
+			}
+		}
+		config.putAll(System.getProperties());
+		return config;
+	}
+
+	private static int intValue(Properties config, String key, int value) {
+		try {
+			return Integer.parseInt(config.getProperty(key, "").trim());
+		} catch (NumberFormatException ex) {
+			return value;
+		}
+	}
+
 }
@@ -9,6 +9,7 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.workshare.micro.api.entity.model.EntityJsonModule;
 
 @Provider
 @Produces(MediaType.APPLICATION_JSON)
@@ -16,6 +17,13 @@ public class JacksonJsonProvider extends JacksonJaxbJsonProvider {
     private static ObjectMapper commonMapper = null;
 
     public JacksonJsonProvider() {
+        super.setMapper(mapper());
+    }
+
+    /**
+     * @return the mapper shared by every provider and by the streaming writers
+     */
+    public static synchronized ObjectMapper mapper() {
         if (commonMapper == null) {
             ObjectMapper mapper = new ObjectMapper();
 
@@ -23,10 +31,11 @@ public class JacksonJsonProvider extends JacksonJaxbJsonProvider {
 //            mapper.setSerializationInclusion(JsonInclude.Include.NON_DEFAULT);        // will not work with immutable objects
             mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
             mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+            mapper.registerModule(new EntityJsonModule());
 
             commonMapper = mapper;
         }
-        super.setMapper(commonMapper);
+        return commonMapper;
     }
 
 }
@@ -1,18 +1,37 @@
 package com.workshare.micro.api.entity;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.validation.Validator;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
 import com.wordnik.swagger.annotations.Api;
@@ -21,7 +40,12 @@ import com.wordnik.swagger.annotations.ApiErrors;
 import com.wordnik.swagger.annotations.ApiOperation;
 import com.wordnik.swagger.annotations.ApiParam;
 import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.model.EntityBatch;
+import com.workshare.micro.api.entity.persistence.BufferFullException;
+import com.workshare.micro.api.entity.persistence.EntityVersion;
 import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
 import com.workshare.micro.utils.UUIDGenerator;
 
 @Path("/entity.json")
@@ -29,81 +53,346 @@ import com.workshare.micro.utils.UUIDGenerator;
 @Produces({ "application/json" })
 public class EntityApi {
 
-	private final static long EXPIRER_MILLISECONDS_PERIOD = 1000 * 3600;
-
-	@Inject
-	private EntityDao entityDao;
+	private static final Logger logger = LoggerFactory
+			.getLogger(EntityApi.class);
 
-	@Inject
-	private UUIDGenerator uuids;
+	private final static int DEFAULT_PAGE_SIZE = 100;
+	private final static int MAX_PAGE_SIZE = 1000;
+	private final static int MAX_BATCH_SIZE = 1000;
+	private final static String CREATE_USER = "createUser";
+	// 9999-12-31T23:59:59Z, the latest date both H2 and MySQL compare with
+	private final static long MAX_DATE = 253402300799000L;
+	private final static String CACHE_CONTROL = "Cache-Control";
+	// entities never change: cacheable for a year, without revalidation,
+	// unless they expire before
+	private final static String IMMUTABLE = "max-age=31536000, immutable";
 
-	public EntityApi() {
-	}
+	private final EntityDao entityDao;
+	private final UUIDGenerator uuids;
+	private final MicroConfig config;
+	private final Validator validator;
+	private final EntityExpirer expirer;
+	private final EntityVersion version;
 
-	public EntityApi(EntityDao entityDao, UUIDGenerator uuids,
-			ScheduledExecutorService aScheduler) {
-		this();
+	@Inject
+	public EntityApi(EntityDao entityDao, EntityVersion version,
+			UUIDGenerator uuids, MicroConfig config, Validator validator,
+			Monitor monitor, ScheduledExecutorService aScheduler) {
 		this.entityDao = entityDao;
+		this.version = version;
 		this.uuids = uuids;
+		this.config = config;
+		this.validator = validator;
+		this.expirer = new EntityExpirer(entityDao, monitor, config);
 
 		Runnable expireRunner = new Runnable() {
 			@Override
 			public void run() {
-				expire();
+				try {
+					expire();
+				} catch (RuntimeException ex) {
+					// thrown out, it would cancel the following runs
+					logger.error("Unable to expire entities", ex);
+				}
 			}
 		};
 
-		aScheduler.scheduleAtFixedRate(expireRunner, 0,
-				EXPIRER_MILLISECONDS_PERIOD, TimeUnit.MILLISECONDS);
+		if (expirer.isEnabled()) {
+			long period = Math.max(1, config.expiryInterval());
+			aScheduler.scheduleAtFixedRate(expireRunner, period, period,
+					TimeUnit.MILLISECONDS);
+		}
 	}
 
-	private void expire() {
-		// Do something in an specific interval
+	/**
+	 * Deletes the entities older than the configured retention.
+	 */
+	void expire() {
+		expirer.expire();
 	}
 
 	@POST
 	@Path("/")
 	@ApiOperation(value = "Creates an entity with the specified content", notes = "The entity is created on the system and the url is returned in the location header")
-	@ApiErrors(value = { @ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)") })
+	@ApiErrors(value = {
+			@ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)"),
+			@ApiError(code = 503, reason = "The system is too busy to accept the entity, retry after the time specified in the Retry-After header") })
 	public Response create(
 			@ApiParam(value = "The entity to be added in the system", required = true) @PathParam("body") String content)
 			throws URISyntaxException {
 		String id = uuids.generateString();
-		String createUser = "createUser";
 
-		Entity entity = new Entity(id, content, null, createUser);
+		Entity entity = new Entity(id, content, createDate(), CREATE_USER);
 
-		entityDao.create(entity);
+		try {
+			entityDao.create(entity);
+		} catch (BufferFullException ex) {
+			return Response.status(Status.SERVICE_UNAVAILABLE)
+					.header("Retry-After", ex.getRetryAfterSeconds()).build();
+		}
 		return Response.created(new URI(id)).build();
 	}
 
+	@POST
+	@Path("/bulk")
+	@Consumes({ "application/json", EntityExport.NDJSON_TYPE })
+	@ApiOperation(value = "Creates an entity for each request of a JSON array or newline delimited JSON body", notes = "Each item is created or rejected on its own: the result lists the id or the validation errors of each item, in order")
+	@ApiErrors(value = {
+			@ApiError(code = 400, reason = "The body is malformed: the items before the error have been processed, as listed in the result"),
+			@ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)") })
+	public Response createBulk(
+			@ApiParam(value = "The entity requests to be added in the system", required = true) InputStream body)
+			throws IOException {
+		EntityBulkCreate bulk = new EntityBulkCreate(entityDao, uuids,
+				validator, CREATE_USER, config.bulkChunkSize());
+		bulk.read(body);
+
+		Status status = bulk.isMalformed() ? Status.BAD_REQUEST : Status.OK;
+		return Response.status(status).entity(bulk)
+				.type(MediaType.APPLICATION_JSON).build();
+	}
+
+	@POST
+	@Path("/bulk/delete")
+	@Consumes({ "application/json" })
+	@ApiOperation(value = "Deletes the entities with the listed ids, or the ones matching a filter", notes = "The body is either {\"ids\": [...]} or {\"filter\": {\"createdBefore\": date, \"createUser\": user}}; the result reports how many entities were deleted")
+	@ApiErrors(value = {
+			@ApiError(code = 400, reason = "The body is malformed or does not specify what to delete: the ids before the error have been deleted, as counted in the result"),
+			@ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)") })
+	public Response deleteBulk(
+			@ApiParam(value = "The ids or the filter of the entities to delete", required = true) InputStream body)
+			throws IOException {
+		EntityBulkDelete bulk = new EntityBulkDelete(entityDao,
+				config.bulkChunkSize());
+		bulk.read(body);
+
+		Status status = bulk.isInvalid() ? Status.BAD_REQUEST : Status.OK;
+		return Response.status(status).entity(bulk)
+				.type(MediaType.APPLICATION_JSON).build();
+	}
+
+	/**
+	 * @return the current date in whole seconds, so that it survives any
+	 *         TIMESTAMP column and the entity keeps its place when listed by
+	 *         create date
+	 */
+	static Date createDate() {
+		long now = System.currentTimeMillis();
+		return new Date(now - now % 1000);
+	}
+
 	@GET
 	@Path("/")
-	@ApiOperation(value = "Return a list of all the entitys as defined by the filter", notes = "", responseClass = "com.workshare.micro.api.entitys.model.entity", multiValueResponse = true)
-	@ApiErrors(value = { @ApiError(code = 403, reason = "Account list not available (at least to you).") })
-	public Response get() {
-		List<Entity> entitysList = entityDao.get();
+	@Produces({ "application/json", EntityExport.NDJSON_TYPE })
+	@ApiOperation(value = "Return a list of all the entitys as defined by the filter", notes = "Entities are returned a page at a time, unless an export format is specified: then all of them are streamed", responseClass = "com.workshare.micro.api.entitys.model.entity", multiValueResponse = true)
+	@ApiErrors(value = {
+			@ApiError(code = 400, reason = "The limit, order, cursor or export format is not valid"),
+			@ApiError(code = 403, reason = "Account list not available (at least to you).") })
+	public Response get(
+			@ApiParam(value = "The maximum number of entities to return, 100 by default and at most 1000") @QueryParam("limit") Integer limit,
+			@ApiParam(value = "The cursor of the page to return, as provided by the next link of the previous page") @QueryParam("cursor") String cursor,
+			@ApiParam(value = "The order of the first page, by id or created date", allowableValues = "id,created") @QueryParam("order") String order,
+			@ApiParam(value = "Streams all the entities as a JSON array or as newline delimited JSON", allowableValues = "json,ndjson") @QueryParam("export") String export,
+			@ApiParam(value = "The ETag of a copy already held, answered 304 if no entity changed since") @HeaderParam("If-None-Match") String ifNoneMatch) {
+		// read before querying: a change the query misses moves the version on
+		final EntityTag tag = new EntityTag(version.get());
+		if (export != null) {
+			return export(export, tag, ifNoneMatch);
+		}
+
+		if (limit != null && limit < 1) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		final int size = (limit == null) ? DEFAULT_PAGE_SIZE : Math.min(
+				limit, MAX_PAGE_SIZE);
+
+		final EntityCursor position;
+		try {
+			position = (cursor == null) ? EntityCursor.first(order)
+					: EntityCursor.decode(cursor);
+		} catch (IllegalArgumentException ex) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		if (EntityTags.matches(ifNoneMatch, tag)) {
+			return revalidated(Response.notModified(tag));
+		}
+
+		List<Entity> entitysList = position.isByCreateDate() ? entityDao
+				.pageByCreateDate(position.getCreateDate(), position.getId(),
+						size + 1) : entityDao.pageById(position.getId(),
+				size + 1);
 		if (entitysList == null) {
 			return Response.serverError().build();
+		} else if (entitysList.size() > size) {
+			entitysList = entitysList.subList(0, size);
+			String next = position.after(entitysList.get(size - 1)).encode();
+			return revalidated(Response
+					.ok(new ArrayList<Entity>(entitysList))
+					.tag(tag)
+					.header("Link",
+							"<?cursor=" + next + "&limit=" + size
+									+ ">; rel=\"next\""));
+		} else {
+			return revalidated(Response.ok(entitysList).tag(tag));
+		}
+	}
+
+	private Response export(String format, EntityTag tag, String ifNoneMatch) {
+		final EntityExport output;
+		try {
+			output = new EntityExport(entityDao, exportFetchSize(), format);
+		} catch (IllegalArgumentException ex) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		if (EntityTags.matches(ifNoneMatch, tag)) {
+			return revalidated(Response.notModified(tag));
+		}
+		return revalidated(Response.ok(output, output.getMediaType()).tag(tag));
+	}
+
+	/**
+	 * @return the fetch size of the export: MySQL streams the rows only when
+	 *         it is Integer.MIN_VALUE, and buffers them all with any other
+	 */
+	private int exportFetchSize() {
+		String url = config.jdbcUrl();
+		if (url != null && url.startsWith("jdbc:mysql:")) {
+			return Integer.MIN_VALUE;
+		} else {
+			return config.exportFetchSize();
+		}
+	}
+
+	/**
+	 * @return the response, to be cached only if revalidated on every use
+	 */
+	private static Response revalidated(ResponseBuilder builder) {
+		return builder.header(CACHE_CONTROL, "no-cache").build();
+	}
+
+	@GET
+	@Path("/query")
+	@ApiOperation(value = "Returns the entities created by a user and within a time range", notes = "Entities are returned a page at a time, ordered by created date; dates are milliseconds since the epoch", responseClass = "com.workshare.micro.api.entitys.model.entity", multiValueResponse = true)
+	@ApiErrors(value = {
+			@ApiError(code = 400, reason = "The limit, range or cursor is not valid"),
+			@ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)") })
+	public Response query(
+			@ApiParam(value = "The user the entities were created by, any if not specified") @QueryParam("createUser") String createUser,
+			@ApiParam(value = "The earliest created date, inclusive") @QueryParam("from") Long from,
+			@ApiParam(value = "The latest created date, exclusive") @QueryParam("to") Long to,
+			@ApiParam(value = "The maximum number of entities to return, 100 by default and at most 1000") @QueryParam("limit") Integer limit,
+			@ApiParam(value = "The cursor of the page to return, as provided by the next link of the previous page") @QueryParam("cursor") String cursor) {
+		if (limit != null && limit < 1) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		final int size = (limit == null) ? DEFAULT_PAGE_SIZE : Math.min(
+				limit, MAX_PAGE_SIZE);
+		final Date before = new Date((to == null) ? MAX_DATE : Math.min(to,
+				MAX_DATE));
+
+		final EntityCursor position;
+		try {
+			position = (cursor == null) ? EntityCursor.first(
+					EntityCursor.ORDER_CREATED).from(
+					new Date((from == null) ? 0 : from)) : EntityCursor
+					.decode(cursor);
+		} catch (IllegalArgumentException ex) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+		if (!position.isByCreateDate()) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+
+		List<Entity> entitysList = (createUser == null) ? entityDao
+				.pageByCreateDate(position.getCreateDate(), position.getId(),
+						before, size + 1) : entityDao.pageByUser(createUser,
+				position.getCreateDate(), position.getId(), before, size + 1);
+		if (entitysList.size() > size) {
+			entitysList = entitysList.subList(0, size);
+			String next = position.after(entitysList.get(size - 1)).encode();
+			StringBuilder link = new StringBuilder("<?cursor=").append(next)
+					.append("&limit=").append(size);
+			if (createUser != null) {
+				link.append("&createUser=").append(encode(createUser));
+			}
+			if (to != null) {
+				link.append("&to=").append(to);
+			}
+			return Response.ok(new ArrayList<Entity>(entitysList))
+					.header("Link", link.append(">; rel=\"next\"").toString())
+					.build();
 		} else {
 			return Response.ok(entitysList).build();
 		}
 	}
 
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@GET
+	@Path("/batch")
+	@ApiOperation(value = "Returns the entities with the specified ids", notes = "The ids that were not found are listed as missing", responseClass = "com.workshare.micro.api.entity.model.EntityBatch")
+	@ApiErrors(value = {
+			@ApiError(code = 400, reason = "No ids, or more than 1000, were specified"),
+			@ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)") })
+	public Response getBatch(
+			@ApiParam(value = "ids of the entities to get, as repeated parameters", required = true, allowMultiple = true) @QueryParam("id") List<String> ids) {
+		Set<String> requested = new LinkedHashSet<String>(ids);
+		if (requested.isEmpty() || requested.size() > MAX_BATCH_SIZE) {
+			return Response.status(Status.BAD_REQUEST).build();
+		}
+
+		List<Entity> entities = entityDao.get(requested);
+		for (Entity entity : entities) {
+			requested.remove(entity.getId());
+		}
+		return Response.ok(
+				new EntityBatch(entities, new ArrayList<String>(requested)))
+				.build();
+	}
+
 	@GET
 	@Path("/{id}")
-	@ApiOperation(value = "Creates a entity with the specified content", notes = "User/Session must be the entity creator", responseClass = "com.workshare.micro.api.entitys.model.entity")
+	@ApiOperation(value = "Creates a entity with the specified content", notes = "User/Session must be the entity creator. Entities never change, so the response may be cached for good, or until the entity expires when expiry is enabled, and revalidated with its ETag", responseClass = "com.workshare.micro.api.entitys.model.entity")
 	@ApiErrors(value = { @ApiError(code = 401, reason = "The user could not be authenticated (wrong or no session id)") })
 	public Response get(
-			@ApiParam(value = "id of the entity to get", required = true) @PathParam("id") String id) {
+			@ApiParam(value = "id of the entity to get", required = true) @PathParam("id") String id,
+			@ApiParam(value = "The ETag of a copy already held, answered 304 if still current") @HeaderParam("If-None-Match") String ifNoneMatch) {
 		Entity entity = entityDao.get(id);
 		if (entity == null) {
 			return Response.status(404).build();
+		}
+
+		EntityTag tag = EntityTags.of(entity);
+		if (EntityTags.matches(ifNoneMatch, tag)) {
+			return Response.notModified(tag)
+					.header(CACHE_CONTROL, cacheControl(entity)).build();
 		} else {
-			return Response.ok().entity(entity).build();
+			return Response.ok().entity(entity).tag(tag)
+					.header(CACHE_CONTROL, cacheControl(entity)).build();
 		}
 	}
 
+	/**
+	 * An entity due to expire is cached until then at most, and revalidated
+	 * afterwards.
+	 */
+	private String cacheControl(Entity entity) {
+		if (!expirer.isEnabled()) {
+			return IMMUTABLE;
+		}
+
+		long remaining = expirer.remaining(entity, System.currentTimeMillis());
+		return "max-age="
+				+ Math.min(TimeUnit.DAYS.toSeconds(365),
+						TimeUnit.MILLISECONDS.toSeconds(remaining));
+	}
+
 	@DELETE
 	@Path("/{id}")
 	@ApiOperation(value = "Deletes a entity with the specified id", notes = "User/Session must be the entity creator")
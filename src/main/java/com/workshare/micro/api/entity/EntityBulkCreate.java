@@ -0,0 +1,237 @@
+package com.workshare.micro.api.entity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.workshare.micro.api.JacksonJsonProvider;
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.model.EntityRequest;
+import com.workshare.micro.api.entity.persistence.PartialWriteException;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.utils.UUIDGenerator;
+
+/**
+ * Creates the entities of a bulk request as the body is read, either a JSON
+ * array or newline delimited JSON of entity requests. Each item is validated
+ * on its own; the valid ones are stored in batches, so that only one batch of
+ * contents is held in memory at a time. Only the id or the errors of each item
+ * are kept, and written back as the result.
+ */
+public class EntityBulkCreate implements StreamingOutput {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(EntityBulkCreate.class);
+
+	private final EntityDao entityDao;
+	private final UUIDGenerator uuids;
+	private final Validator validator;
+	private final String createUser;
+	private final int chunkSize;
+	private final ObjectMapper mapper;
+
+	private final List<String> ids;
+	private final Map<Integer, List<String>> errors;
+	private final List<Entity> chunk;
+	private final List<Integer> chunkItems;
+	private String bodyError;
+
+	/**
+	 * @param chunkSize
+	 *            the number of entities stored by each batch (0 means a single
+	 *            batch)
+	 */
+	public EntityBulkCreate(EntityDao entityDao, UUIDGenerator uuids,
+			Validator validator, String createUser, int chunkSize) {
+		this.entityDao = entityDao;
+		this.uuids = uuids;
+		this.validator = validator;
+		this.createUser = createUser;
+		this.chunkSize = chunkSize;
+		this.mapper = JacksonJsonProvider.mapper();
+		this.ids = new ArrayList<String>();
+		this.errors = new LinkedHashMap<Integer, List<String>>();
+		this.chunk = new ArrayList<Entity>();
+		this.chunkItems = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Reads and creates every item of the body. A malformed body stops the
+	 * reading, but the items before it are still created.
+	 */
+	public void read(InputStream body) throws IOException {
+		JsonParser parser = mapper.getFactory().createParser(body);
+		try {
+			JsonToken token = parser.nextToken();
+			boolean array = (token == JsonToken.START_ARRAY);
+			if (array) {
+				token = parser.nextToken();
+			}
+
+			while (token != null && !(array && token == JsonToken.END_ARRAY)) {
+				add(parser, token);
+				token = parser.nextToken();
+			}
+		} catch (JsonProcessingException ex) {
+			bodyError = "Malformed body after item " + ids.size() + ": "
+					+ ex.getOriginalMessage();
+		} finally {
+			parser.close();
+		}
+		store();
+	}
+
+	/**
+	 * @return true if the body could not be read to its end
+	 */
+	public boolean isMalformed() {
+		return bodyError != null;
+	}
+
+	public int getCreated() {
+		return ids.size() - errors.size();
+	}
+
+	public int getFailed() {
+		return errors.size();
+	}
+
+	/**
+	 * Reads the item starting at the given token straight into a request,
+	 * leaving the parser on its last token.
+	 */
+	private void add(JsonParser parser, JsonToken token) throws IOException {
+		EntityRequest request = null;
+		String error = null;
+		if (token != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			error = "itemNotAnObject";
+		} else {
+			try {
+				request = mapper.readValue(parser, EntityRequest.class);
+			} catch (JsonMappingException ex) {
+				// read to its end anyway: the following items can still be read
+				error = "itemInvalid";
+			}
+		}
+
+		final int index = ids.size();
+		ids.add(null);
+		if (error != null) {
+			fail(index, error);
+			return;
+		}
+
+		Entity entity = new Entity(uuids.generateString(), request.content,
+				EntityApi.createDate(), createUser);
+		Set<ConstraintViolation<Entity>> violations = validator
+				.validate(entity);
+		if (!violations.isEmpty()) {
+			for (ConstraintViolation<Entity> violation : violations) {
+				fail(index, violation.getMessage());
+			}
+			return;
+		}
+
+		ids.set(index, entity.getId());
+		chunk.add(entity);
+		chunkItems.add(index);
+		if (chunkSize > 0 && chunk.size() >= chunkSize) {
+			store();
+		}
+	}
+
+	private void store() {
+		if (chunk.isEmpty()) {
+			return;
+		}
+
+		try {
+			entityDao.createBatch(new ArrayList<Entity>(chunk));
+		} catch (RuntimeException ex) {
+			logger.error("Unable to store " + chunk.size()
+					+ " entities of a bulk request", ex);
+			// the statements committed before the failure stored their items
+			Set<Entity> written = new HashSet<Entity>();
+			if (ex instanceof PartialWriteException) {
+				written.addAll(((PartialWriteException) ex).getWritten());
+			}
+			for (int i = 0; i < chunk.size(); i++) {
+				if (!written.contains(chunk.get(i))) {
+					int index = chunkItems.get(i);
+					ids.set(index, null);
+					fail(index, "storeFailed");
+				}
+			}
+		}
+		chunk.clear();
+		chunkItems.clear();
+	}
+
+	private void fail(int index, String error) {
+		List<String> itemErrors = errors.get(index);
+		if (itemErrors == null) {
+			itemErrors = new ArrayList<String>(1);
+			errors.put(index, itemErrors);
+		}
+		itemErrors.add(error);
+	}
+
+	/**
+	 * Writes the result: the number of entities created and failed, the error
+	 * of the body if it was malformed, and the id or the errors of each item.
+	 */
+	@Override
+	public void write(OutputStream output) throws IOException,
+			WebApplicationException {
+		JsonGenerator generator = mapper.getFactory().createGenerator(output);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		generator.writeStartObject();
+		generator.writeNumberField("created", getCreated());
+		generator.writeNumberField("failed", getFailed());
+		if (bodyError != null) {
+			generator.writeStringField("error", bodyError);
+		}
+
+		generator.writeArrayFieldStart("items");
+		for (int i = 0; i < ids.size(); i++) {
+			generator.writeStartObject();
+			List<String> itemErrors = errors.get(i);
+			if (itemErrors == null) {
+				generator.writeStringField("id", ids.get(i));
+			} else {
+				generator.writeArrayFieldStart("errors");
+				for (String error : itemErrors) {
+					generator.writeString(error);
+				}
+				generator.writeEndArray();
+			}
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+
+		generator.writeEndObject();
+		generator.close();
+	}
+}
@@ -0,0 +1,140 @@
+package com.workshare.micro.api.entity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.workshare.micro.api.JacksonJsonProvider;
+import com.workshare.micro.api.entity.model.EntityFilter;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+
+/**
+ * Deletes the entities of a bulk request: either the ids listed in the body,
+ * read and deleted a chunk at a time, or the entities matching a filter,
+ * looked up and deleted a chunk at a time. The result is the number of
+ * entities deleted.
+ */
+public class EntityBulkDelete {
+
+	private final EntityDao entityDao;
+	private final int chunkSize;
+	private final ObjectMapper mapper;
+	private final List<String> chunk;
+	private int deleted;
+	private String error;
+
+	/**
+	 * @param chunkSize
+	 *            the number of entities deleted by each statement (0 means a
+	 *            single statement)
+	 */
+	public EntityBulkDelete(EntityDao entityDao, int chunkSize) {
+		this.entityDao = entityDao;
+		this.chunkSize = (chunkSize > 0) ? chunkSize : Integer.MAX_VALUE;
+		this.mapper = JacksonJsonProvider.mapper();
+		this.chunk = new ArrayList<String>();
+	}
+
+	/**
+	 * Reads the body, an object with either an <code>ids</code> array or a
+	 * <code>filter</code>, deleting the entities as it goes. A malformed body
+	 * stops the reading, but the ids before it are still deleted.
+	 */
+	public void read(InputStream body) throws IOException {
+		boolean found = false;
+		EntityFilter filter = null;
+
+		JsonParser parser = mapper.getFactory().createParser(body);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				error = "The body must be an object";
+				return;
+			}
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("ids".equals(field) && value == JsonToken.START_ARRAY) {
+					readIds(parser);
+					found = true;
+				} else if ("filter".equals(field)
+						&& value == JsonToken.START_OBJECT) {
+					filter = mapper.readValue(parser, EntityFilter.class);
+					found = true;
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} catch (JsonProcessingException ex) {
+			error = "Malformed body: " + ex.getOriginalMessage();
+		} finally {
+			parser.close();
+			deleteChunk();
+		}
+
+		if (error == null && !found) {
+			error = "Either ids or a filter must be given";
+		} else if (error == null && filter != null) {
+			if (filter.createdBefore == null) {
+				error = "The filter must specify createdBefore";
+			} else {
+				deleteMatching(filter);
+			}
+		}
+	}
+
+	private void readIds(JsonParser parser) throws IOException {
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+				chunk.add(parser.getText());
+				if (chunk.size() >= chunkSize) {
+					deleteChunk();
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private void deleteChunk() {
+		if (!chunk.isEmpty()) {
+			deleted += entityDao.delete(new ArrayList<String>(chunk));
+			chunk.clear();
+		}
+	}
+
+	private void deleteMatching(EntityFilter filter) {
+		String after = "";
+		List<String> ids;
+		do {
+			ids = entityDao.idsCreatedBefore(filter.createdBefore,
+					filter.createUser, after, chunkSize);
+			if (!ids.isEmpty()) {
+				deleted += entityDao.delete(ids);
+				after = ids.get(ids.size() - 1);
+			}
+		} while (ids.size() == chunkSize);
+	}
+
+	/**
+	 * @return true if the body was malformed or did not specify what to delete
+	 */
+	@JsonIgnore
+	public boolean isInvalid() {
+		return error != null;
+	}
+
+	public int getDeleted() {
+		return deleted;
+	}
+
+	public String getError() {
+		return error;
+	}
+}
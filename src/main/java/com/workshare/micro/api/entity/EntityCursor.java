@@ -0,0 +1,126 @@
+package com.workshare.micro.api.entity;
+
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.workshare.micro.api.entity.model.Entity;
+
+/**
+ * The position of a page in a listing of entities, ordered either by id or by
+ * create date and id. Clients see it as an opaque, url safe token.
+ */
+public class EntityCursor {
+
+	public static final String ORDER_ID = "id";
+	public static final String ORDER_CREATED = "created";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final boolean byCreateDate;
+	private final Date createDate;
+	private final String id;
+
+	private EntityCursor(boolean byCreateDate, Date createDate, String id) {
+		this.byCreateDate = byCreateDate;
+		this.createDate = createDate;
+		this.id = id;
+	}
+
+	/**
+	 * @return the cursor of the first page in the given order, by id if null
+	 * @throws IllegalArgumentException
+	 *             if the order is unknown
+	 */
+	public static EntityCursor first(String order) {
+		if (order == null || ORDER_ID.equals(order)) {
+			return new EntityCursor(false, null, "");
+		} else if (ORDER_CREATED.equals(order)) {
+			return new EntityCursor(true, new Date(0), "");
+		} else {
+			throw new IllegalArgumentException("Unknown order " + order);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the token is not a valid cursor
+	 */
+	public static EntityCursor decode(String token) {
+		String text;
+		try {
+			text = new String(DatatypeConverter.parseBase64Binary(pad(token
+					.replace('-', '+').replace('_', '/'))), UTF8);
+		} catch (RuntimeException ex) {
+			throw new IllegalArgumentException("Invalid cursor " + token, ex);
+		}
+
+		if (text.startsWith("i:")) {
+			return new EntityCursor(false, null, text.substring(2));
+		}
+
+		int separator = text.indexOf(':', 2);
+		if (text.startsWith("c:") && separator > 0) {
+			try {
+				long millis = Long.parseLong(text.substring(2, separator));
+				return new EntityCursor(true, new Date(millis),
+						text.substring(separator + 1));
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid cursor " + token,
+						ex);
+			}
+		}
+		throw new IllegalArgumentException("Invalid cursor " + token);
+	}
+
+	/**
+	 * @return the cursor of the first page created at or after the given date,
+	 *         in the same order as this one
+	 */
+	public EntityCursor from(Date date) {
+		return new EntityCursor(byCreateDate, byCreateDate ? date : null, "");
+	}
+
+	/**
+	 * @return the cursor of the page following the given entity, in the same
+	 *         order as this one
+	 */
+	public EntityCursor after(Entity last) {
+		Date date = (last.getCreateDate() == null) ? new Date(Long.MAX_VALUE)
+				: last.getCreateDate();
+		return new EntityCursor(byCreateDate, byCreateDate ? date : null,
+				last.getId());
+	}
+
+	public String encode() {
+		String text = byCreateDate ? "c:" + createDate.getTime() + ":" + id
+				: "i:" + id;
+		String base64 = DatatypeConverter.printBase64Binary(text.getBytes(UTF8));
+		int end = base64.length();
+		while (end > 0 && base64.charAt(end - 1) == '=') {
+			end--;
+		}
+		return base64.substring(0, end).replace('+', '-').replace('/', '_');
+	}
+
+	public boolean isByCreateDate() {
+		return byCreateDate;
+	}
+
+	public Date getCreateDate() {
+		return createDate;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	private static String pad(String base64) {
+		StringBuilder padded = new StringBuilder(base64);
+		while (padded.length() % 4 != 0) {
+			padded.append('=');
+		}
+		return padded.toString();
+	}
+}
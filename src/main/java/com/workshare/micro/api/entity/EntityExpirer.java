@@ -0,0 +1,120 @@
+package com.workshare.micro.api.entity;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+
+/**
+ * Deletes the entities older than the retention, oldest first, a chunk at a
+ * time: each chunk is a short statement, and the expirer pauses between
+ * chunks so that it never competes for long with the foreground traffic. The
+ * DAO purges the deleted entities from its caches and buffers as well.
+ */
+public class EntityExpirer {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(EntityExpirer.class);
+
+	private final EntityDao entityDao;
+	private final long retention;
+	private final int chunkSize;
+	private final long chunkPause;
+	private final Meter expired;
+	private volatile long lag;
+
+	public EntityExpirer(EntityDao entityDao, Monitor monitor,
+			MicroConfig config) {
+		this.entityDao = entityDao;
+		this.retention = config.expiryRetention();
+		this.chunkSize = Math.max(1, config.expiryChunkSize());
+		this.chunkPause = config.expiryChunkPause();
+
+		this.expired = monitor.metrics().register("entity.expiry.expired",
+				new Meter());
+		monitor.metrics().register("entity.expiry.lag", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return lag;
+			}
+		});
+	}
+
+	/**
+	 * @return false if the retention is 0, meaning entities are kept forever
+	 */
+	public boolean isEnabled() {
+		return retention > 0;
+	}
+
+	/**
+	 * @return the milliseconds left before the entity is due to expire, 0 if
+	 *         it is due already or its create date is unknown
+	 */
+	public long remaining(Entity entity, long now) {
+		Date createDate = entity.getCreateDate();
+		return (createDate == null) ? 0 : Math.max(0, createDate.getTime()
+				+ retention - now);
+	}
+
+	/**
+	 * Deletes every entity created before the retention, then updates the
+	 * lag: how long past its retention the oldest remaining entity is.
+	 *
+	 * @return the number of entities deleted
+	 */
+	public int expire() {
+		if (!isEnabled()) {
+			return 0;
+		}
+
+		Date before = new Date(System.currentTimeMillis() - retention);
+		int count = 0;
+		List<String> ids = entityDao.idsExpired(before, chunkSize);
+		while (!ids.isEmpty()) {
+			int deleted = entityDao.delete(ids);
+			expired.mark(deleted);
+			count += deleted;
+			if (ids.size() < chunkSize || !pause()) {
+				break;
+			}
+			ids = entityDao.idsExpired(before, chunkSize);
+		}
+
+		Date oldest = entityDao.oldestCreateDate();
+		lag = (oldest == null) ? 0 : Math.max(0, System.currentTimeMillis()
+				- retention - oldest.getTime());
+		logger.debug("Expired {} entities created before {}, lag {}ms",
+				new Object[] { count, before, lag });
+		return count;
+	}
+
+	/**
+	 * @return false if interrupted while pausing
+	 */
+	private boolean pause() {
+		if (chunkPause <= 0) {
+			return true;
+		}
+		try {
+			TimeUnit.MILLISECONDS.sleep(chunkPause);
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public long getLag() {
+		return lag;
+	}
+}
@@ -0,0 +1,86 @@
+package com.workshare.micro.api.entity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.skife.jdbi.v2.ResultIterator;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.workshare.micro.api.JacksonJsonProvider;
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+
+/**
+ * Writes every entity as it is read from the database, either as a JSON array
+ * or as newline delimited JSON, so that memory use does not depend on the
+ * number of entities. The first entity is flushed as soon as it is written.
+ */
+public class EntityExport implements StreamingOutput {
+
+	public static final String JSON = "json";
+	public static final String NDJSON = "ndjson";
+	public static final String NDJSON_TYPE = "application/x-ndjson";
+
+	private final EntityDao entityDao;
+	private final int fetchSize;
+	private final boolean delimited;
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the format is neither {@link #JSON} nor {@link #NDJSON}
+	 */
+	public EntityExport(EntityDao entityDao, int fetchSize, String format) {
+		if (!JSON.equals(format) && !NDJSON.equals(format)) {
+			throw new IllegalArgumentException("Unknown export format "
+					+ format);
+		}
+
+		this.entityDao = entityDao;
+		this.fetchSize = fetchSize;
+		this.delimited = NDJSON.equals(format);
+	}
+
+	public String getMediaType() {
+		return delimited ? NDJSON_TYPE : "application/json";
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException,
+			WebApplicationException {
+		ObjectMapper mapper = JacksonJsonProvider.mapper();
+		JsonGenerator generator = mapper.getFactory().createGenerator(output);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		ResultIterator<Entity> entities = entityDao.stream(fetchSize);
+		try {
+			if (delimited) {
+				generator.setRootValueSeparator(new SerializedString("\n"));
+			} else {
+				generator.writeStartArray();
+			}
+
+			boolean first = true;
+			while (entities.hasNext()) {
+				generator.writeObject(entities.next());
+				if (first) {
+					generator.flush();
+					first = false;
+				}
+			}
+
+			if (!delimited) {
+				generator.writeEndArray();
+			} else if (!first) {
+				generator.writeRaw('\n');
+			}
+			generator.close();
+		} finally {
+			entities.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.workshare.micro.api.entity;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.ws.rs.core.EntityTag;
+import javax.xml.bind.DatatypeConverter;
+
+import com.workshare.micro.api.entity.model.Entity;
+
+/**
+ * Entity tags of the API responses. An entity never changes once created, so
+ * its strong tag is a digest of its fields: the same on every node and across
+ * restarts, and valid for as long as the entity exists.
+ */
+public class EntityTags {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private EntityTags() {
+	}
+
+	/**
+	 * @return the strong tag of the given entity
+	 */
+	public static EntityTag of(Entity entity) {
+		MessageDigest digest = digest();
+		update(digest, entity.getId());
+		update(digest, entity.getContent());
+		update(digest, (entity.getCreateDate() == null) ? null : String
+				.valueOf(entity.getCreateDate().getTime()));
+		update(digest, entity.getCreateUser());
+		return new EntityTag(DatatypeConverter.printHexBinary(digest.digest())
+				.toLowerCase());
+	}
+
+	/**
+	 * Compares the tags the way <code>If-None-Match</code> does: weakly, so
+	 * that a weak tag sent back matches its strong original.
+	 *
+	 * @return true if the header value is <code>*</code>, or lists the tag
+	 */
+	public static boolean matches(String ifNoneMatch, EntityTag tag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+
+		String expected = "\"" + tag.getValue() + "\"";
+		for (String value : ifNoneMatch.split(",")) {
+			value = value.trim();
+			if (value.startsWith("W/")) {
+				value = value.substring(2);
+			}
+			if (value.equals("*") || value.equals(expected)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		if (value != null) {
+			digest.update(value.getBytes(UTF8));
+		}
+		// separates the fields, so that their boundaries count
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -33,6 +33,9 @@ public class Entity {
 	@Size(max = 100, message = "createUserOverflow")
 	private final String createUser;
 
+	// entities never change once created: their JSON can be reused
+	private transient volatile Serialized serialized;
+
 	public Entity(String id, String content, Date createDate, String createUser) {
 		super();
 		this.id = id;
@@ -57,6 +60,19 @@ public class Entity {
 		return createUser;
 	}
 
+	/**
+	 * @return the JSON of this entity as last written by the given writer, or
+	 *         null; lives and goes with the entity, in whatever cache holds it
+	 */
+	public byte[] serialized(Object writer) {
+		Serialized last = serialized;
+		return (last != null && last.writer == writer) ? last.json : null;
+	}
+
+	public void serialized(Object writer, byte[] json) {
+		this.serialized = new Serialized(writer, json);
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder s = new StringBuilder("entity [id=").append(id)
@@ -79,4 +95,14 @@ public class Entity {
 			return false;
 		}
 	}
+
+	private static class Serialized {
+		private final Object writer;
+		private final byte[] json;
+
+		Serialized(Object writer, byte[] json) {
+			this.writer = writer;
+			this.json = json;
+		}
+	}
 }
\ No newline at end of file
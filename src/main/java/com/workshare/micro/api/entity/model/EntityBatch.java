@@ -0,0 +1,32 @@
+package com.workshare.micro.api.entity.model;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.wordnik.swagger.annotations.ApiClass;
+import com.wordnik.swagger.annotations.ApiProperty;
+
+@ApiClass
+@XmlRootElement(name = "EntityBatch")
+public class EntityBatch {
+
+	@ApiProperty(required = true, value = "The entities found, in the order they were requested")
+	private final List<Entity> entities;
+
+	@ApiProperty(required = true, value = "The ids of the entities that were not found")
+	private final List<String> missing;
+
+	public EntityBatch(List<Entity> entities, List<String> missing) {
+		this.entities = entities;
+		this.missing = missing;
+	}
+
+	public List<Entity> getEntities() {
+		return entities;
+	}
+
+	public List<String> getMissing() {
+		return missing;
+	}
+}
@@ -0,0 +1,21 @@
+package com.workshare.micro.api.entity.model;
+
+import java.util.Date;
+
+import javax.validation.constraints.NotNull;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.wordnik.swagger.annotations.ApiClass;
+import com.wordnik.swagger.annotations.ApiProperty;
+
+@ApiClass
+@XmlRootElement(name = "EntityFilter")
+public class EntityFilter {
+
+	@ApiProperty(required = true, value = "Matches the entities created before this date")
+	@NotNull
+	public Date createdBefore;
+
+	@ApiProperty(required = false, value = "Matches only the entities created by this user")
+	public String createUser;
+}
@@ -0,0 +1,114 @@
+package com.workshare.micro.api.entity.model;
+
+import java.io.IOException;
+import java.util.Date;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * Streaming codecs for the entities and the entity requests: both have a
+ * small fixed shape, so they are written and read token by token, with the
+ * field names encoded once, instead of through the introspected bean
+ * properties. The entities are written as the mapper would: fields in
+ * declaration order, nulls left out and dates in the mapper format.
+ */
+public class EntityJsonModule extends SimpleModule {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final SerializedString ID = new SerializedString("id");
+	private static final SerializedString CONTENT = new SerializedString(
+			"content");
+	private static final SerializedString CREATE_DATE = new SerializedString(
+			"createDate");
+	private static final SerializedString CREATE_USER = new SerializedString(
+			"createUser");
+
+	public EntityJsonModule() {
+		super("EntityJsonModule", Version.unknownVersion());
+		addSerializer(Entity.class, new EntitySerializer());
+		addDeserializer(EntityRequest.class, new EntityRequestDeserializer());
+	}
+
+	static class EntitySerializer extends StdSerializer<Entity> {
+
+		EntitySerializer() {
+			super(Entity.class);
+		}
+
+		@Override
+		public void serialize(Entity entity, JsonGenerator generator,
+				SerializerProvider provider) throws IOException {
+			generator.writeStartObject();
+			writeString(generator, ID, entity.getId());
+			writeString(generator, CONTENT, entity.getContent());
+			Date createDate = entity.getCreateDate();
+			if (createDate != null) {
+				generator.writeFieldName(CREATE_DATE);
+				provider.defaultSerializeDateValue(createDate, generator);
+			}
+			writeString(generator, CREATE_USER, entity.getCreateUser());
+			generator.writeEndObject();
+		}
+
+		private static void writeString(JsonGenerator generator,
+				SerializedString name, String value) throws IOException {
+			if (value != null) {
+				generator.writeFieldName(name);
+				generator.writeString(value);
+			}
+		}
+	}
+
+	/**
+	 * Reads the content as the mapper would, from any scalar, and skips the
+	 * unknown fields. An invalid request is read to its end before failing,
+	 * so that the items following it in a stream can still be read.
+	 */
+	static class EntityRequestDeserializer extends
+			StdDeserializer<EntityRequest> {
+
+		private static final long serialVersionUID = 1L;
+
+		EntityRequestDeserializer() {
+			super(EntityRequest.class);
+		}
+
+		@Override
+		public EntityRequest deserialize(JsonParser parser,
+				DeserializationContext context) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if (token == JsonToken.START_OBJECT) {
+				token = parser.nextToken();
+			}
+
+			EntityRequest request = new EntityRequest();
+			boolean invalid = false;
+			for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+				String name = parser.getCurrentName();
+				token = parser.nextToken();
+				if (CONTENT.getValue().equals(name) && token.isScalarValue()) {
+					request.content = (token == JsonToken.VALUE_NULL) ? null
+							: parser.getText();
+				} else {
+					invalid |= CONTENT.getValue().equals(name);
+					parser.skipChildren();
+				}
+			}
+
+			if (invalid || token != JsonToken.END_OBJECT) {
+				throw context.mappingException(EntityRequest.class, token);
+			}
+			return request;
+		}
+	}
+}
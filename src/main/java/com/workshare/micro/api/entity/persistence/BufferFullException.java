@@ -0,0 +1,21 @@
+package com.workshare.micro.api.entity.persistence;
+
+/**
+ * Thrown when the write-behind buffer of the {@link CachingEntityDao} is full
+ * and cannot accept any more entities until the next flush.
+ */
+public class BufferFullException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAfterSeconds;
+
+	public BufferFullException(int capacity, long retryAfterSeconds) {
+		super("Write buffer full (capacity " + capacity + ")");
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
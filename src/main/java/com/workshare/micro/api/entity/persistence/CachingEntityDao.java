@@ -1,84 +1,987 @@
 package com.workshare.micro.api.entity.persistence;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.BindBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
 import com.workshare.micro.api.entity.model.Entity;
 import com.workshare.micro.api.entity.persistence.dao.EntityDao;
 import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+import com.workshare.micro.config.MicroConfigService;
+import com.workshare.micro.utils.ScalableBloomFilter;
+import com.workshare.micro.utils.TinyLfuCache;
 
 public class CachingEntityDao implements EntityDao {
 
-	private static final long SCHEDULER_MILLISECONDS_DELAY = 1000;
-	private static final Map<String, Entity> EMPTY_CACHE = Collections
-			.emptyMap();
+	private static final Logger logger = LoggerFactory
+			.getLogger(CachingEntityDao.class);
 
-	private final AtomicInteger size;
+	private static final Comparator<Entity> BY_ID = new Comparator<Entity>() {
+		@Override
+		public int compare(Entity one, Entity other) {
+			return one.getId().compareTo(other.getId());
+		}
+	};
+
+	private static final Comparator<Entity> BY_CREATE_DATE = new Comparator<Entity>() {
+		@Override
+		public int compare(Entity one, Entity other) {
+			long oneDate = (one.getCreateDate() == null) ? Long.MAX_VALUE
+					: one.getCreateDate().getTime();
+			long otherDate = (other.getCreateDate() == null) ? Long.MAX_VALUE
+					: other.getCreateDate().getTime();
+			if (oneDate != otherDate) {
+				return (oneDate < otherDate) ? -1 : 1;
+			}
+			return BY_ID.compare(one, other);
+		}
+	};
+
+	private final MultiRowWriter rowsWriter;
+	private final EntityVersion version;
+	private final WriteBuffer buffer;
+	private final ConcurrentHashMap<String, Boolean> tombstones;
+	private final Meter coalesced;
+	private final TinyLfuCache<String, Entity> readCache;
+	private final Meter readHits;
+	private final Meter readMisses;
+	private final Meter readEvictions;
+	private final AtomicLong deletions;
+	private final ScalableBloomFilter filter;
+	private final Meter filterNegatives;
+	private volatile boolean filterLoaded;
+	private final EntityJournal journal;
+	private final AtomicInteger highWater;
+	private final AtomicBoolean flushRequested;
+	private final Meter rejected;
+	private final Meter flushesTriggered;
+	private final int maxSize;
+	private final int flushSize;
 	private final EntityDao delegate;
-	private volatile Map<String, Entity> cacheCurrent;
-	private volatile Map<String, Entity> cacheWriting = EMPTY_CACHE;
+	private final ScheduledExecutorService scheduler;
+	private final Runnable delayedWriter;
+	private final ExecutorService flusher;
+	private final int multigetChunkSize;
+	private final FlushController controller;
+	private final long retryAfterSeconds;
+	private final Timer[] partitionTimers;
 
+	/**
+	 * @param config
+	 *            provides the buffer limits: <code>cache.buffer.max</code> is
+	 *            the maximum number of buffered entities (0 means unbounded)
+	 *            and <code>cache.buffer.flush</code> the size that triggers an
+	 *            immediate flush (0 means flush on schedule only), while
+	 *            <code>cache.read.capacity</code> bounds the cache of entities
+	 *            read from the database (0 disables it).
+	 *            <code>filter.capacity</code> and <code>filter.fpp</code> size
+	 *            the filter of known ids used to answer lookups of unknown ids
+	 *            without a query (a capacity of 0 disables it). The filter
+	 *            only knows the ids stored at startup and the ones created
+	 *            here, so it is used only when <code>filter.exclusive</code>
+	 *            states this is the single writer of the database.
+	 *            <code>journal.enabled</code>, <code>journal.dir</code> and
+	 *            <code>journal.segment.size</code> control the journal keeping
+	 *            buffered entities safe from crashes.
+	 *            <code>flush.threads</code> is the number of partitions the
+	 *            buffer is split in, by id, and written concurrently on the
+	 *            flusher (1 or less writes everything on the scheduler thread).
+	 *            The {@link FlushController} picks the interval between
+	 *            flushes within <code>flush.interval.min</code> and
+	 *            <code>flush.interval.max</code>, and the batch size within
+	 *            <code>flush.chunk.min</code> and <code>flush.chunk.size</code>
+	 *            (0 means a single batch) so that a batch takes about
+	 *            <code>flush.latency.target</code> milliseconds to write.
+	 *            <code>multiget.chunk.size</code> is the number of ids looked
+	 *            up by a single query (0 means a single query).
+	 *            <code>insert.rows.max</code> and
+	 *            <code>insert.bytes.max</code> bound the multi-row inserts
+	 *            writing the batches (1 or fewer rows means JDBC batches)
+	 */
 	public CachingEntityDao(EntityDao aDelegate,
-			ScheduledExecutorService aScheduler, Monitor monitor) {
+			ScheduledExecutorService aScheduler, ExecutorService aFlusher,
+			Monitor monitor, MicroConfig config) {
 		this.delegate = aDelegate;
-		this.cacheCurrent = new HashMap<String, Entity>();
-		this.size = new AtomicInteger();
+		this.scheduler = aScheduler;
+		this.flusher = aFlusher;
+		this.multigetChunkSize = config.multigetChunkSize();
+		this.rowsWriter = new MultiRowWriter(config.insertRowsMax(),
+				config.insertBytesMax());
+		this.partitionTimers = new Timer[Math.max(1, config.flushThreads())];
+		this.controller = new FlushController(config.flushIntervalMin(),
+				config.flushIntervalMax(), config.flushChunkMin(),
+				config.flushChunkSize(), config.flushLatencyTarget(),
+				partitionTimers.length);
+		this.retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS
+				.toSeconds(config.flushIntervalMax() + 999));
+		for (int i = 0; i < partitionTimers.length; i++) {
+			partitionTimers[i] = new Timer();
+			monitor.metrics().register("entity.flush.partition." + i,
+					partitionTimers[i]);
+		}
+		this.buffer = new WriteBuffer();
+		this.tombstones = new ConcurrentHashMap<String, Boolean>();
+		this.version = new EntityVersion();
+		this.coalesced = new Meter();
+		this.readHits = new Meter();
+		this.readMisses = new Meter();
+		this.readEvictions = new Meter();
+		this.deletions = new AtomicLong();
+		this.readCache = new TinyLfuCache<String, Entity>(
+				config.cacheReadCapacity(),
+				new TinyLfuCache.EvictionListener<String, Entity>() {
+					@Override
+					public void evicted(String id, Entity entity) {
+						readEvictions.mark();
+					}
+				});
+		this.highWater = new AtomicInteger();
+		this.flushRequested = new AtomicBoolean();
+		this.rejected = new Meter();
+		this.flushesTriggered = new Meter();
+		this.filter = (config.filterExclusive() && config.filterCapacity() > 0) ? new ScalableBloomFilter(
+				config.filterCapacity(), config.filterFpp())
+				: null;
+		this.filterNegatives = new Meter();
+		this.journal = config.journalEnabled() ? openJournal(config) : null;
+		this.maxSize = config.cacheBufferMax();
+		this.flushSize = config.cacheBufferFlush();
 
-		Runnable delayedWriter = new Runnable() {
+		delayedWriter = new Runnable() {
 			@Override
 			public void run() {
-				cacheWriting = cacheCurrent;
-				cacheCurrent = new ConcurrentHashMap<String, Entity>();
-				size.set(0);
-				delegate.createBatch(cacheWriting.values());
-				cacheWriting = EMPTY_CACHE;
+				try {
+					boolean due = controller.isDue(now(), buffer.size()
+							+ tombstones.size());
+					if (due || flushRequested.get()) {
+						flush();
+					}
+				} catch (RuntimeException ex) {
+					// thrown out, it would cancel the following runs; the
+					// entities and deletes not written are retried by them
+					logger.error("Unable to flush, will retry on the next run",
+							ex);
+				}
 			}
 		};
 
 		aScheduler.scheduleAtFixedRate(delayedWriter, 0,
-				SCHEDULER_MILLISECONDS_DELAY, TimeUnit.MILLISECONDS);
+				Math.max(1, config.flushIntervalMin()), TimeUnit.MILLISECONDS);
 
 		monitor.metrics().register("entity.cache.size", new Gauge<Integer>() {
 			@Override
 			public Integer getValue() {
-				return size.intValue();
+				return buffer.size();
+			}
+		});
+		monitor.metrics().register("entity.cache.highwater",
+				new Gauge<Integer>() {
+					@Override
+					public Integer getValue() {
+						return highWater.intValue();
+					}
+				});
+		monitor.metrics().register("entity.cache.rejected", rejected);
+		monitor.metrics().register("entity.cache.flushes.triggered",
+				flushesTriggered);
+		monitor.metrics().register("entity.cache.tombstones",
+				new Gauge<Integer>() {
+					@Override
+					public Integer getValue() {
+						return tombstones.size();
+					}
+				});
+		monitor.metrics().register("entity.cache.coalesced", coalesced);
+		registerFlushMetrics(monitor);
+		monitor.metrics().register("entity.cache.read.hits", readHits);
+		monitor.metrics().register("entity.cache.read.misses", readMisses);
+		monitor.metrics().register("entity.cache.read.evictions",
+				readEvictions);
+		if (filter != null) {
+			registerFilterMetrics(monitor);
+		}
+	}
+
+	private static EntityJournal openJournal(MicroConfig config) {
+		File directory = new File(config.journalDir());
+		if (!directory.isAbsolute()) {
+			directory = new File(MicroConfigService.configRoot(),
+					config.journalDir());
+		}
+
+		try {
+			return new EntityJournal(directory, config.journalSegmentSize());
+		} catch (IOException ex) {
+			throw new JournalException("Unable to open journal in "
+					+ directory, ex);
+		}
+	}
+
+	private void registerFlushMetrics(Monitor monitor) {
+		monitor.metrics().register("entity.flush.interval", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return controller.interval();
+			}
+		});
+		monitor.metrics().register("entity.flush.batch", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return controller.batchSize();
+			}
+		});
+		monitor.metrics().register("entity.flush.arrival.rate",
+				new Gauge<Double>() {
+					@Override
+					public Double getValue() {
+						return controller.arrivalRate();
+					}
+				});
+		monitor.metrics().register("entity.flush.latency",
+				new Gauge<Double>() {
+					@Override
+					public Double getValue() {
+						return controller.entityLatency();
+					}
+				});
+	}
+
+	private void registerFilterMetrics(Monitor monitor) {
+		monitor.metrics().register("entity.filter.size", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return filter.size();
+			}
+		});
+		monitor.metrics().register("entity.filter.bytes", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				return filter.bytes();
 			}
 		});
+		monitor.metrics().register("entity.filter.fpp", new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return filter.expectedFpp();
+			}
+		});
+		monitor.metrics().register("entity.filter.negatives", filterNegatives);
+	}
+
+	/**
+	 * Writes to the database the entities left in the journal by a previous
+	 * run that did not get to flush them, then discards them from the journal.
+	 * The ones already written are found with a query per chunk of
+	 * <code>multiget.chunk.size</code> ids, on the primary database.
+	 */
+	public void recoverJournal() {
+		if (journal == null) {
+			return;
+		}
+
+		try {
+			List<Entity> recovered = journal.recovered();
+			List<Entity> missing = new ArrayList<Entity>();
+			final int chunkSize = (multigetChunkSize > 0) ? multigetChunkSize
+					: Math.max(1, recovered.size());
+			for (int from = 0; from < recovered.size(); from += chunkSize) {
+				List<Entity> chunk = recovered.subList(from,
+						Math.min(recovered.size(), from + chunkSize));
+				List<String> ids = new ArrayList<String>(chunk.size());
+				for (Entity entity : chunk) {
+					ids.add(entity.getId());
+				}
+				Set<String> stored = new HashSet<String>(delegate.ids(ids));
+				for (Entity entity : chunk) {
+					if (!stored.contains(entity.getId())) {
+						missing.add(entity);
+					}
+				}
+			}
+
+			if (!missing.isEmpty()) {
+				rowsWriter.write(delegate, missing);
+			}
+			List<String> deletes = journal.recoveredDeletes();
+			if (!deletes.isEmpty()) {
+				delegate.deleteBatch(deletes);
+			}
+			journal.discardRecovered();
+			logger.info(
+					"Recovered {} creates and {} deletes from the journal",
+					missing.size(), deletes.size());
+		} catch (IOException ex) {
+			throw new JournalException("Unable to read the journal", ex);
+		}
+	}
+
+	/**
+	 * Loads the ids of all the stored entities in the filter of known ids.
+	 * Until this is done every lookup goes to the database.
+	 */
+	public void loadFilter() {
+		if (filter == null) {
+			return;
+		}
+
+		ResultIterator<String> ids = delegate.ids();
+		try {
+			while (ids.hasNext()) {
+				filter.put(ids.next());
+			}
+		} finally {
+			ids.close();
+		}
+		filterLoaded = true;
 	}
 
 	@Override
 	public Entity get(String id) {
-		Entity entity = cacheCurrent.get(id);
-		if (entity == null) {
-			entity = cacheWriting.get(id);
+		if (tombstones.containsKey(id)) {
+			return null;
+		}
+
+		Entity entity = buffer.get(id);
+		if (entity != null) {
+			return entity;
+		}
+
+		entity = readCache.get(id);
+		if (entity != null) {
+			readHits.mark();
+			return entity;
 		}
 
-		return (entity == null) ? delegate.get(id) : entity;
+		readMisses.mark();
+		if (filterLoaded && !filter.mightContain(id)) {
+			filterNegatives.mark();
+			return null;
+		}
+
+		long generation = deletions.get();
+		entity = delegate.get(id);
+		if (entity != null) {
+			cache(entity, generation);
+		}
+		return entity;
 	}
 
+	/**
+	 * Resolves the ids from the buffer and the read cache first, then queries
+	 * the remaining ones in chunks of <code>multiget.chunk.size</code>.
+	 *
+	 * @return the entities found, in the order of their ids
+	 */
 	@Override
-	public List<Entity> get() {
-		List<Entity> entities = new ArrayList<Entity>();
-		entities.addAll(delegate.get());
-		entities.addAll(cacheCurrent.values());
+	public List<Entity> get(Collection<String> ids) {
+		Map<String, Entity> found = new HashMap<String, Entity>();
+		List<String> missing = new ArrayList<String>();
+		for (String id : new LinkedHashSet<String>(ids)) {
+			if (tombstones.containsKey(id)) {
+				continue;
+			}
+
+			Entity entity = buffer.get(id);
+			if (entity == null) {
+				entity = readCache.get(id);
+				if (entity != null) {
+					readHits.mark();
+				}
+			}
+
+			if (entity != null) {
+				found.put(id, entity);
+			} else {
+				readMisses.mark();
+				if (filterLoaded && !filter.mightContain(id)) {
+					filterNegatives.mark();
+				} else {
+					missing.add(id);
+				}
+			}
+		}
+
+		final int chunkSize = (multigetChunkSize > 0) ? multigetChunkSize
+				: Math.max(1, missing.size());
+		for (int from = 0; from < missing.size(); from += chunkSize) {
+			List<String> chunk = missing.subList(from,
+					Math.min(missing.size(), from + chunkSize));
+			long generation = deletions.get();
+			for (Entity entity : delegate.get(chunk)) {
+				found.put(entity.getId(), entity);
+				cache(entity, generation);
+			}
+		}
+
+		List<Entity> entities = new ArrayList<Entity>(found.size());
+		for (String id : ids) {
+			Entity entity = found.remove(id);
+			if (entity != null) {
+				entities.add(entity);
+			}
+		}
 		return entities;
 	}
 
+	/**
+	 * Caches an entity read from the database, unless a delete reached the
+	 * database since the read started: the entity could be stale then.
+	 */
+	private void cache(Entity entity, long generation) {
+		readCache.put(entity.getId(), entity);
+		if (deletions.get() != generation) {
+			readCache.remove(entity.getId());
+		}
+	}
+
+	@Override
+	public List<Entity> get() {
+		Map<String, Entity> entities = new LinkedHashMap<String, Entity>();
+		final boolean anyDeleted = !tombstones.isEmpty();
+		for (Entity entity : delegate.get()) {
+			if (!anyDeleted || !tombstones.containsKey(entity.getId())) {
+				entities.put(entity.getId(), entity);
+			}
+		}
+		for (Entity entity : buffer.values()) {
+			if (!entities.containsKey(entity.getId())) {
+				entities.put(entity.getId(), entity);
+			}
+		}
+		return new ArrayList<Entity>(entities.values());
+	}
+
+	/**
+	 * Returns a page of the stored entities merged with the buffered ones.
+	 */
+	@Override
+	public List<Entity> pageById(String after, int limit) {
+		List<Entity> stored = delegate.pageById(after,
+				limit + tombstones.size());
+		return page(stored, BY_ID, new Entity(after, null, null, null), limit);
+	}
+
+	/**
+	 * Returns a page of the stored entities merged with the buffered ones;
+	 * buffered entities with no create date sort after all the others.
+	 */
+	@Override
+	public List<Entity> pageByCreateDate(Date date, String after, int limit) {
+		List<Entity> stored = delegate.pageByCreateDate(date, after, limit
+				+ tombstones.size());
+		return page(stored, BY_CREATE_DATE, new Entity(after, null, date,
+				null), limit);
+	}
+
+	/**
+	 * Returns a page of the stored entities merged with the buffered ones
+	 * created before the given date.
+	 */
+	@Override
+	public List<Entity> pageByCreateDate(Date date, String after,
+			Date before, int limit) {
+		List<Entity> stored = delegate.pageByCreateDate(date, after, before,
+				limit + tombstones.size());
+		return page(stored, BY_CREATE_DATE, new Entity(after, null, date,
+				null), null, before, limit);
+	}
+
+	/**
+	 * Returns a page of the stored entities merged with the buffered ones
+	 * created by the given user before the given date.
+	 */
+	@Override
+	public List<Entity> pageByUser(String createUser, Date date,
+			String after, Date before, int limit) {
+		List<Entity> stored = delegate.pageByUser(createUser, date, after,
+				before, limit + tombstones.size());
+		return page(stored, BY_CREATE_DATE, new Entity(after, null, date,
+				null), createUser, before, limit);
+	}
+
+	private List<Entity> page(List<Entity> stored, Comparator<Entity> order,
+			Entity position, int limit) {
+		return page(stored, order, position, null, null, limit);
+	}
+
+	/**
+	 * @param createUser
+	 *            the user the buffered entities must be created by, any if
+	 *            null
+	 * @param before
+	 *            the date the buffered entities must be created before, any if
+	 *            null
+	 */
+	private List<Entity> page(List<Entity> stored, Comparator<Entity> order,
+			Entity position, String createUser, Date before, int limit) {
+		Map<String, Entity> merged = new HashMap<String, Entity>();
+		for (Entity entity : stored) {
+			if (!tombstones.containsKey(entity.getId())) {
+				merged.put(entity.getId(), entity);
+			}
+		}
+		for (Entity entity : buffer.values()) {
+			if (order.compare(entity, position) > 0
+					&& (createUser == null || createUser.equals(entity
+							.getCreateUser()))
+					&& (before == null || (entity.getCreateDate() != null && entity
+							.getCreateDate().before(before)))) {
+				merged.put(entity.getId(), entity);
+			}
+		}
+
+		List<Entity> page = new ArrayList<Entity>(merged.values());
+		Collections.sort(page, order);
+		return (page.size() > limit) ? new ArrayList<Entity>(page.subList(0,
+				limit)) : page;
+	}
+
+	/**
+	 * Iterates over the stored entities, skipping the deleted ones, then over
+	 * the entities buffered when the iteration started. Only the buffered
+	 * entities are held in memory.
+	 */
+	@Override
+	public ResultIterator<Entity> stream(int fetchSize) {
+		final Map<String, Entity> buffered = new LinkedHashMap<String, Entity>();
+		for (Entity entity : buffer.values()) {
+			buffered.put(entity.getId(), entity);
+		}
+		final Set<String> deleted = new HashSet<String>(tombstones.keySet());
+		return new MergingIterator(delegate.stream(fetchSize), buffered,
+				deleted);
+	}
+
+	private static class MergingIterator implements ResultIterator<Entity> {
+		private final ResultIterator<Entity> stored;
+		private final Map<String, Entity> buffered;
+		private final Set<String> deleted;
+		private Iterator<Entity> pending;
+		private Entity next;
+
+		MergingIterator(ResultIterator<Entity> stored,
+				Map<String, Entity> buffered, Set<String> deleted) {
+			this.stored = stored;
+			this.buffered = buffered;
+			this.deleted = deleted;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && pending == null && stored.hasNext()) {
+				Entity entity = stored.next();
+				if (!deleted.contains(entity.getId())
+						&& !buffered.containsKey(entity.getId())) {
+					next = entity;
+				}
+			}
+			if (next == null) {
+				if (pending == null) {
+					stored.close();
+					pending = buffered.values().iterator();
+				}
+				if (pending.hasNext()) {
+					next = pending.next();
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Entity next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entity entity = next;
+			next = null;
+			return entity;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			stored.close();
+		}
+	}
+
+	/**
+	 * @return the ids of the stored entities, excluding the ones still waiting
+	 *         to be written
+	 */
+	@Override
+	public ResultIterator<String> ids() {
+		return delegate.ids();
+	}
+
+	@Override
+	public List<String> ids(Collection<String> ids) {
+		return delegate.ids(ids);
+	}
+
+	/**
+	 * Deletes the entity. If it was created in the current write-behind
+	 * window it is simply dropped from the buffer, otherwise it is hidden
+	 * right away and removed from the database by the next flush.
+	 */
 	@Override
 	public void delete(String id) {
-		cacheCurrent.remove(id);
-		delegate.delete(id);
+		Entity buffered = buffer.remove(id);
+		if (buffered != null && !buffer.isWriting(id)) {
+			discard(id);
+		} else {
+			tombstone(id);
+		}
+		readCache.remove(id);
+		version.changed();
+	}
+
+	@Override
+	public void deleteBatch(Collection<String> ids) {
+		for (String id : ids) {
+			delete(id);
+		}
+	}
+
+	/**
+	 * Deletes the entities right away, with a single statement for the stored
+	 * ones, while the buffered ones are simply dropped and the ones being
+	 * written are deleted by the flush writing them.
+	 *
+	 * @return the number of entities deleted
+	 */
+	@Override
+	public int delete(Collection<String> ids) {
+		int discarded = 0;
+		List<String> stored = new ArrayList<String>(ids.size());
+		for (String id : ids) {
+			Entity buffered = buffer.remove(id);
+			if (buffered != null && !buffer.isWriting(id)) {
+				discard(id);
+				discarded++;
+			} else if (buffered != null) {
+				// being written: deleted by the flush writing it
+				tombstone(id);
+				discarded++;
+			} else {
+				stored.add(id);
+			}
+			readCache.remove(id);
+		}
+
+		int deleted = discarded;
+		if (!stored.isEmpty()) {
+			deleted += delegate.delete(stored);
+			deletions.incrementAndGet();
+			for (String id : stored) {
+				readCache.remove(id);
+			}
+		}
+		version.changed();
+		return deleted;
+	}
+
+	/**
+	 * Returns a page of the ids of the stored entities matching the filter,
+	 * merged with the ids of the buffered ones.
+	 */
+	@Override
+	public List<String> idsCreatedBefore(Date before, String createUser,
+			String after, int limit) {
+		Map<String, Entity> matching = new HashMap<String, Entity>();
+		int fetch = (int) Math.min(Integer.MAX_VALUE, (long) limit
+				+ tombstones.size());
+		for (String id : delegate.idsCreatedBefore(before, createUser, after,
+				fetch)) {
+			if (!tombstones.containsKey(id)) {
+				matching.put(id, null);
+			}
+		}
+		for (Entity entity : buffer.values()) {
+			if (entity.getId().compareTo(after) > 0
+					&& entity.getCreateDate() != null
+					&& entity.getCreateDate().before(before)
+					&& (createUser == null || createUser.equals(entity
+							.getCreateUser()))) {
+				matching.put(entity.getId(), entity);
+			}
+		}
+
+		List<String> ids = new ArrayList<String>(matching.keySet());
+		Collections.sort(ids);
+		return (ids.size() > limit) ? new ArrayList<String>(ids.subList(0,
+				limit)) : ids;
+	}
+
+	/**
+	 * Returns the ids of the buffered entities created before the given date,
+	 * followed by the ones of the oldest stored entities.
+	 */
+	@Override
+	public List<String> idsExpired(Date before, int limit) {
+		Set<String> ids = new LinkedHashSet<String>();
+		for (Entity entity : buffer.values()) {
+			if (ids.size() < limit && entity.getCreateDate() != null
+					&& entity.getCreateDate().before(before)) {
+				ids.add(entity.getId());
+			}
+		}
+		if (ids.size() < limit) {
+			int fetch = (int) Math.min(Integer.MAX_VALUE, (long) limit
+					- ids.size() + tombstones.size());
+			for (String id : delegate.idsExpired(before, fetch)) {
+				if (ids.size() < limit && !tombstones.containsKey(id)) {
+					ids.add(id);
+				}
+			}
+		}
+		return new ArrayList<String>(ids);
+	}
+
+	/**
+	 * Returns the create date of the oldest entity, stored or buffered.
+	 */
+	@Override
+	public Date oldestCreateDate() {
+		Date oldest = delegate.oldestCreateDate();
+		for (Entity entity : buffer.values()) {
+			Date date = entity.getCreateDate();
+			if (date != null && (oldest == null || date.before(oldest))) {
+				oldest = date;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Drops a create that never reached the database, recording in the
+	 * journal that it has been deleted.
+	 */
+	private void discard(String id) {
+		coalesced.mark();
+		if (journal != null) {
+			journal.appendDelete(id);
+			journal.releasedDeletes(Collections.singleton(id));
+			journal.released(id);
+		}
+	}
+
+	private void tombstone(String id) {
+		if (journal != null) {
+			journal.appendDelete(id);
+		}
+		tombstones.put(id, Boolean.TRUE);
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private void flush() {
+		flushRequested.set(false);
+		final long start = System.nanoTime();
+
+		List<Entity> batch = buffer.drain();
+		if (!batch.isEmpty()) {
+			List<Entity> stored = write(batch);
+			if (stored.size() < batch.size()) {
+				List<Entity> failed = new ArrayList<Entity>(batch);
+				failed.removeAll(new HashSet<Entity>(stored));
+				buffer.requeue(failed);
+			}
+
+			for (String id : buffer.written(stored)) {
+				tombstone(id);
+			}
+			if (journal != null) {
+				journal.released(stored);
+			}
+			version.changed();
+		}
+
+		// tombstones are cleared only once deleted: a failure leaves them to
+		// the next flush
+		List<String> deletes = new ArrayList<String>(tombstones.keySet());
+		if (!deletes.isEmpty()) {
+			delegate.deleteBatch(deletes);
+			deletions.incrementAndGet();
+			for (String id : deletes) {
+				tombstones.remove(id);
+				readCache.remove(id);
+			}
+			if (journal != null) {
+				journal.releasedDeletes(deletes);
+			}
+			version.changed();
+		}
+
+		if (journal != null) {
+			journal.checkpoint();
+		}
+		controller.flushed(now(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Writes the entities partitioned by id, each partition in its own task.
+	 *
+	 * @return the entities written, which are all of them unless some
+	 *         partition failed
+	 */
+	private List<Entity> write(List<Entity> batch) {
+		final int partitions = partitionTimers.length;
+		if (partitions == 1) {
+			return new PartitionWriter(0, batch).call();
+		}
+
+		List<List<Entity>> partitioned = new ArrayList<List<Entity>>();
+		for (int i = 0; i < partitions; i++) {
+			partitioned.add(new ArrayList<Entity>());
+		}
+		for (Entity entity : batch) {
+			int hash = entity.getId().hashCode();
+			partitioned.get((hash & Integer.MAX_VALUE) % partitions).add(
+					entity);
+		}
+
+		List<Future<List<Entity>>> futures = new ArrayList<Future<List<Entity>>>();
+		for (int i = 0; i < partitions; i++) {
+			if (!partitioned.get(i).isEmpty()) {
+				futures.add(flusher.submit(new PartitionWriter(i, partitioned
+						.get(i))));
+			}
+		}
+
+		List<Entity> stored = new ArrayList<Entity>(batch.size());
+		for (Future<List<Entity>> future : futures) {
+			stored.addAll(awaitUninterruptibly(future));
+		}
+		return stored;
+	}
+
+	private static <T> T awaitUninterruptibly(Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				} catch (ExecutionException ex) {
+					throw new IllegalStateException("Flush partition failed",
+							ex.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private class PartitionWriter implements Callable<List<Entity>> {
+		private final int index;
+		private final List<Entity> entities;
+
+		PartitionWriter(int index, List<Entity> entities) {
+			this.index = index;
+			this.entities = entities;
+		}
+
+		@Override
+		public List<Entity> call() {
+			final int batchSize = controller.batchSize();
+			final int chunkSize = (batchSize > 0) ? batchSize : entities
+					.size();
+			final List<Entity> written = new ArrayList<Entity>(entities.size());
+			final Timer.Context timing = partitionTimers[index].time();
+			List<Entity> chunk = Collections.emptyList();
+			try {
+				for (int from = 0; from < entities.size(); from += chunkSize) {
+					chunk = entities.subList(from,
+							Math.min(entities.size(), from + chunkSize));
+					long start = System.nanoTime();
+					rowsWriter.write(delegate, chunk);
+					controller.written(chunk.size(), System.nanoTime() - start);
+					written.addAll(chunk);
+				}
+			} catch (RuntimeException ex) {
+				logger.error("Unable to write "
+						+ (entities.size() - written.size())
+						+ " entities of partition " + index
+						+ ", will retry on the next flush", ex);
+				written.addAll(stored(chunk));
+			} finally {
+				timing.stop();
+			}
+			return written;
+		}
+	}
+
+	/**
+	 * @return the entities of a chunk that failed which are stored all the
+	 *         same, by a write applied in part: retrying them would fail on
+	 *         their ids forever. None if the database cannot tell, in which
+	 *         case the next failure checks again.
+	 */
+	private List<Entity> stored(List<Entity> chunk) {
+		if (chunk.isEmpty()) {
+			return chunk;
+		}
+
+		List<String> ids = new ArrayList<String>(chunk.size());
+		for (Entity entity : chunk) {
+			ids.add(entity.getId());
+		}
+		try {
+			Set<String> stored = new HashSet<String>(delegate.ids(ids));
+			List<Entity> entities = new ArrayList<Entity>(stored.size());
+			for (Entity entity : chunk) {
+				if (stored.contains(entity.getId())) {
+					entities.add(entity);
+				}
+			}
+			return entities;
+		} catch (RuntimeException ex) {
+			logger.warn("Unable to check the entities stored by a failed write",
+					ex);
+			return Collections.emptyList();
+		}
 	}
 
 	@Override
@@ -88,14 +991,83 @@ public class CachingEntityDao implements EntityDao {
 
 	@Override
 	public void create(Entity entity) {
-		cacheCurrent.put(entity.getId(), entity);
-		size.incrementAndGet();
+		if (!buffer.reserve(maxSize)) {
+			rejected.mark();
+			throw new BufferFullException(maxSize, retryAfterSeconds);
+		}
+
+		if (journal != null) {
+			try {
+				journal.append(entity);
+			} catch (RuntimeException ex) {
+				buffer.release();
+				throw ex;
+			}
+		}
+		if (filter != null) {
+			filter.put(entity.getId());
+		}
+		final int current = buffer.add(entity);
+		version.changed();
+		controller.arrived();
+		updateHighWater(current);
+
+		if (flushSize > 0 && current >= flushSize
+				&& flushRequested.compareAndSet(false, true)) {
+			requestFlush();
+		}
+	}
+
+	private void updateHighWater(int current) {
+		int peak = highWater.get();
+		while (current > peak && !highWater.compareAndSet(peak, current)) {
+			peak = highWater.get();
+		}
+	}
+
+	private void requestFlush() {
+		try {
+			scheduler.execute(delayedWriter);
+			flushesTriggered.mark();
+		} catch (RejectedExecutionException ex) {
+			flushRequested.set(false);
+		}
 	}
 
 	// TODO should we implement this for consistency?
 	// we are not optimizing this because our APIs will never directly use this
 	@Override
 	public void createBatch(@BindBean Collection<Entity> entities) {
-		delegate.createBatch(entities);
+		if (filter != null) {
+			for (Entity entity : entities) {
+				filter.put(entity.getId());
+			}
+		}
+		try {
+			rowsWriter.write(delegate, entities);
+		} finally {
+			// a partial write stored some of them
+			version.changed();
+		}
+	}
+
+	@Override
+	public int createRows(Collection<Entity> entities) {
+		if (filter != null) {
+			for (Entity entity : entities) {
+				filter.put(entity.getId());
+			}
+		}
+		int created = delegate.createRows(entities);
+		version.changed();
+		return created;
+	}
+
+	/**
+	 * @return the version of the entities, changed by every create and delete
+	 *         through this DAO, and by every flush
+	 */
+	public EntityVersion version() {
+		return version;
 	}
 }
@@ -0,0 +1,425 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.workshare.micro.api.entity.model.Entity;
+
+/**
+ * An append-only journal of the creates and deletes accepted by the
+ * write-behind buffer, so that they survive a crash of the JVM before being
+ * flushed.<br/>
+ * Records are appended to memory-mapped segment files and forced to disk
+ * before {@link #append} returns; concurrent appenders share a single force
+ * (group commit). Each segment counts the records it holds that have not been
+ * applied to the database yet. Segments are deleted oldest first, once they
+ * and all the segments before them have no pending record, so that a delete
+ * record never outlives the create it cancels; the current segment is
+ * cleared and reused instead, so that a new one is mapped only once it is
+ * full.<br/>
+ * Segments found when the journal is opened belong to a previous run: their
+ * records are available through {@link #recovered()} and
+ * {@link #recoveredDeletes()} until {@link #discardRecovered()} is called.
+ */
+public class EntityJournal {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(EntityJournal.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+	private static final int HEADER_SIZE = 8;
+	private static final byte CREATE = 1;
+	private static final byte DELETE = 2;
+	private static final byte CREATE_DATED = 3;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private final File directory;
+	private final int segmentSize;
+	private final ConcurrentHashMap<String, Segment> creates;
+	private final ConcurrentHashMap<String, Segment> deletes;
+	private final LinkedList<Segment> segments;
+	private final List<File> recoveredFiles;
+	private Map<String, Entity> recoveredEntities;
+	private Set<String> recoveredDeletes;
+	private Segment current;
+
+	public EntityJournal(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.creates = new ConcurrentHashMap<String, Segment>();
+		this.deletes = new ConcurrentHashMap<String, Segment>();
+		this.segments = new LinkedList<Segment>();
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory "
+					+ directory);
+		}
+
+		this.recoveredFiles = new ArrayList<File>(Arrays.asList(segments()));
+		long sequence = recoveredFiles.isEmpty() ? 0
+				: sequenceOf(recoveredFiles.get(recoveredFiles.size() - 1)) + 1;
+		this.current = new Segment(sequence);
+		this.segments.add(current);
+	}
+
+	/**
+	 * Appends the creation of the entity to the journal, returning once it is
+	 * on disk. The record is pending until {@link #released} is called.
+	 */
+	public void append(Entity entity) {
+		Date createDate = entity.getCreateDate();
+		append(encode(CREATE_DATED, entity.getId(), entity.getContent(),
+				(createDate == null) ? NO_DATE : createDate.getTime(),
+				entity.getCreateUser()), entity.getId(), creates);
+	}
+
+	/**
+	 * Appends the deletion of the entity to the journal, returning once it is
+	 * on disk. The record is pending until {@link #releasedDeletes} is called.
+	 */
+	public void appendDelete(String id) {
+		append(encode(DELETE, id, null, NO_DATE, null), id, deletes);
+	}
+
+	private void append(byte[] record, String id,
+			ConcurrentHashMap<String, Segment> locations) {
+		if (record.length > segmentSize) {
+			throw new JournalException("Record for " + id
+					+ " does not fit a journal segment");
+		}
+
+		final Segment segment;
+		final int end;
+		synchronized (this) {
+			if (current.position + record.length > segmentSize) {
+				roll();
+			}
+
+			segment = current;
+			ByteBuffer view = segment.buffer.duplicate();
+			view.position(segment.position);
+			view.put(record);
+			segment.position += record.length;
+			segment.written = segment.position;
+			end = segment.position;
+
+			segment.outstanding.incrementAndGet();
+			Segment previous = locations.put(id, segment);
+			if (previous != null) {
+				previous.outstanding.decrementAndGet();
+			}
+		}
+
+		segment.sync(end);
+	}
+
+	/**
+	 * Releases the creation of the given entities, which have been written to
+	 * the database or are not going to be, deleting the segments left with no
+	 * pending record.
+	 */
+	public void released(Collection<Entity> entities) {
+		for (Entity entity : entities) {
+			release(creates.remove(entity.getId()));
+		}
+		truncate();
+	}
+
+	public void released(String id) {
+		release(creates.remove(id));
+		truncate();
+	}
+
+	/**
+	 * Releases the deletion of the given ids, which have been applied to the
+	 * database, deleting the segments left with no pending record.
+	 */
+	public void releasedDeletes(Collection<String> ids) {
+		for (String id : ids) {
+			release(deletes.remove(id));
+		}
+		truncate();
+	}
+
+	/**
+	 * Clears the current segment if it only holds released records, so that
+	 * it is reused rather than rolled: segments are only added once full.
+	 */
+	public synchronized void checkpoint() {
+		if (current.position > 0 && current.outstanding.get() == 0) {
+			current.reset();
+			truncate();
+		}
+	}
+
+	/**
+	 * @return the entities created in the segments of a previous run and not
+	 *         deleted afterwards, in the order they were appended
+	 */
+	public synchronized List<Entity> recovered() throws IOException {
+		readRecovered();
+		return new ArrayList<Entity>(recoveredEntities.values());
+	}
+
+	/**
+	 * @return the ids deleted in the segments of a previous run
+	 */
+	public synchronized List<String> recoveredDeletes() throws IOException {
+		readRecovered();
+		return new ArrayList<String>(recoveredDeletes);
+	}
+
+	private void readRecovered() throws IOException {
+		if (recoveredEntities == null) {
+			Map<String, Entity> entities = new LinkedHashMap<String, Entity>();
+			Set<String> deleted = new LinkedHashSet<String>();
+			for (File file : recoveredFiles) {
+				read(file, entities, deleted);
+			}
+			recoveredEntities = entities;
+			recoveredDeletes = deleted;
+		}
+	}
+
+	/**
+	 * Deletes the segments of a previous run, once their entities are safely
+	 * stored.
+	 */
+	public synchronized void discardRecovered() {
+		for (File file : recoveredFiles) {
+			if (!file.delete()) {
+				logger.warn("Unable to delete journal segment {}", file);
+			}
+		}
+		recoveredFiles.clear();
+		recoveredEntities = new LinkedHashMap<String, Entity>();
+		recoveredDeletes = new LinkedHashSet<String>();
+	}
+
+	private void roll() {
+		current = new Segment(current.sequence + 1);
+		segments.add(current);
+		truncate();
+	}
+
+	private static void release(Segment segment) {
+		if (segment != null) {
+			segment.outstanding.decrementAndGet();
+		}
+	}
+
+	private synchronized void truncate() {
+		while (segments.getFirst() != current
+				&& segments.getFirst().outstanding.get() == 0) {
+			segments.removeFirst().delete();
+		}
+	}
+
+	private File[] segments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static long sequenceOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length()
+				- SUFFIX.length()));
+	}
+
+	private File fileOf(long sequence) {
+		return new File(directory, String.format("%s%016d%s", PREFIX,
+				sequence, SUFFIX));
+	}
+
+	/**
+	 * Encodes a record; the create date is written only by the dated creates,
+	 * the plain ones were written by journals that did not keep it.
+	 */
+	private static byte[] encode(byte type, String entityId,
+			String entityContent, long entityDate, String entityUser) {
+		byte[] id = bytes(entityId);
+		byte[] content = bytes(entityContent);
+		byte[] user = bytes(entityUser);
+		int bodySize = 1 + 12 + length(id) + length(content) + length(user)
+				+ ((type == CREATE_DATED) ? 8 : 0);
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+		record.position(HEADER_SIZE);
+		record.put(type);
+		putBytes(record, id);
+		putBytes(record, content);
+		if (type == CREATE_DATED) {
+			record.putLong(entityDate);
+		}
+		putBytes(record, user);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_SIZE, bodySize);
+		record.putInt(0, bodySize);
+		record.putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	private static void read(File file, Map<String, Entity> entities,
+			Set<String> deleted) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int bodySize = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (bodySize <= 0 || bodySize > buffer.remaining()) {
+					break;
+				}
+
+				byte[] body = new byte[bodySize];
+				buffer.get(body);
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum) {
+					logger.warn("Torn record in journal segment {}", file);
+					break;
+				}
+
+				ByteBuffer fields = ByteBuffer.wrap(body);
+				byte type = fields.get();
+				String id = getString(fields);
+				String content = getString(fields);
+				long date = (type == CREATE_DATED) ? fields.getLong() : NO_DATE;
+				String user = getString(fields);
+				if (type == CREATE || type == CREATE_DATED) {
+					entities.put(id, new Entity(id, content,
+							(date == NO_DATE) ? null : new Date(date), user));
+				} else if (type == DELETE) {
+					entities.remove(id);
+					deleted.add(id);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		return (value == null) ? null : value.getBytes(UTF8);
+	}
+
+	private static int length(byte[] bytes) {
+		return (bytes == null) ? 0 : bytes.length;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private class Segment {
+		final long sequence;
+		final File file;
+		final MappedByteBuffer buffer;
+		final AtomicInteger outstanding = new AtomicInteger();
+		final Object syncLock = new Object();
+		int position;
+		volatile int written;
+		volatile int synced;
+
+		Segment(long sequence) {
+			this.sequence = sequence;
+			this.file = fileOf(sequence);
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					buffer = raf.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+				} finally {
+					raf.close();
+				}
+			} catch (IOException ex) {
+				throw new JournalException("Unable to create journal segment "
+						+ file, ex);
+			}
+		}
+
+		void sync(int upTo) {
+			if (synced >= upTo) {
+				return;
+			}
+
+			synchronized (syncLock) {
+				if (synced < upTo) {
+					int target = written;
+					buffer.force();
+					synced = target;
+				}
+			}
+		}
+
+		/**
+		 * Zeroes the records written so far, so that none of them is read
+		 * back past the ones appended next, and starts over.
+		 */
+		void reset() {
+			synchronized (syncLock) {
+				ByteBuffer view = buffer.duplicate();
+				view.position(0);
+				view.put(new byte[position]);
+				buffer.force();
+				position = 0;
+				written = 0;
+				synced = 0;
+			}
+		}
+
+		void delete() {
+			if (!file.delete()) {
+				logger.warn("Unable to delete journal segment {}", file);
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The version of the whole set of entities, changed after every write. It
+ * starts from the boot time, so that a version handed out before a restart
+ * never matches one handed out after it.
+ */
+public class EntityVersion {
+
+	private final String epoch;
+	private final AtomicLong changes;
+
+	public EntityVersion() {
+		this.epoch = Long.toString(System.currentTimeMillis(), 36);
+		this.changes = new AtomicLong();
+	}
+
+	/**
+	 * Moves to the next version. Called once the change is visible, so that a
+	 * version read before a query never covers a change the query missed.
+	 */
+	public void changed() {
+		changes.incrementAndGet();
+	}
+
+	/**
+	 * @return the current version, an opaque token
+	 */
+	public String get() {
+		return epoch + "-" + changes.get();
+	}
+}
@@ -0,0 +1,169 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the write-behind buffer is flushed and how large its batches
+ * are, from the observed arrival rate and database latency.<br/>
+ * The batch size is the number of entities a single statement can write
+ * within the target latency, so that no statement holds locks for too long.
+ * The interval between flushes is the time the database needs to absorb the
+ * last flush, so that scheduled flushes take at most half of its time: at
+ * light load entities are written almost immediately. Arrivals filling a
+ * batch per partition are flushed without waiting, so that at heavy load
+ * batches stay small. Both are kept within the configured bounds; rates and
+ * latencies are exponentially weighted moving averages.
+ */
+public class FlushController {
+
+	private static final double WEIGHT = 0.2;
+	private static final double DUTY_CYCLE = 0.5;
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final int minBatch;
+	private final int maxBatch;
+	private final long latencyTarget;
+	private final int partitions;
+	private final AtomicLong arrivals;
+
+	private long lastTick;
+	private long lastArrivals;
+	private long lastFlush;
+	private double arrivalRate;
+	private double entityLatency;
+	private double flushDuration;
+	private volatile long interval;
+	private volatile int batchSize;
+
+	/**
+	 * @param minInterval
+	 *            the shortest interval between flushes, in milliseconds
+	 * @param maxInterval
+	 *            the longest interval between flushes, in milliseconds
+	 * @param minBatch
+	 *            the smallest batch size
+	 * @param maxBatch
+	 *            the largest batch size (0 means unbounded)
+	 * @param latencyTarget
+	 *            the time a batch should take to write, in milliseconds (0
+	 *            means always using the largest batch size)
+	 * @param partitions
+	 *            the number of partitions flushed concurrently
+	 */
+	public FlushController(long minInterval, long maxInterval, int minBatch,
+			int maxBatch, long latencyTarget, int partitions) {
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+		this.minBatch = Math.max(1, minBatch);
+		this.maxBatch = maxBatch;
+		this.latencyTarget = latencyTarget;
+		this.partitions = Math.max(1, partitions);
+		this.arrivals = new AtomicLong();
+		this.interval = this.minInterval;
+		this.batchSize = maxBatch;
+	}
+
+	/**
+	 * Records the arrival of an entity to write.
+	 */
+	public void arrived() {
+		arrivals.incrementAndGet();
+	}
+
+	/**
+	 * @param now
+	 *            the current time, in milliseconds
+	 * @param pending
+	 *            the number of writes waiting to be flushed
+	 * @return true if a flush is due
+	 */
+	public synchronized boolean isDue(long now, int pending) {
+		long total = arrivals.get();
+		if (lastTick == 0) {
+			lastTick = now;
+			lastArrivals = total;
+		} else if (now > lastTick) {
+			double rate = (double) (total - lastArrivals) / (now - lastTick);
+			arrivalRate = average(arrivalRate, rate);
+			lastTick = now;
+			lastArrivals = total;
+			adjust();
+		}
+
+		boolean filled = batchSize > 0 && pending >= batchSize * partitions;
+		return pending > 0 && (filled || now - lastFlush >= interval);
+	}
+
+	/**
+	 * Records a batch written to the database.
+	 */
+	public synchronized void written(int entities, long nanos) {
+		if (entities > 0) {
+			entityLatency = average(entityLatency, (double) nanos / entities
+					/ TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Records the end of a flush.
+	 *
+	 * @param now
+	 *            the current time, in milliseconds
+	 */
+	public synchronized void flushed(long now, long nanos) {
+		lastFlush = now;
+		flushDuration = average(flushDuration, (double) nanos
+				/ TimeUnit.MILLISECONDS.toNanos(1));
+		adjust();
+	}
+
+	/**
+	 * @return the current interval between flushes, in milliseconds
+	 */
+	public long interval() {
+		return interval;
+	}
+
+	/**
+	 * @return the current batch size (0 means unbounded)
+	 */
+	public int batchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the arrival rate, in entities per second
+	 */
+	public synchronized double arrivalRate() {
+		return arrivalRate * TimeUnit.SECONDS.toMillis(1);
+	}
+
+	/**
+	 * @return the time taken to write an entity, in milliseconds
+	 */
+	public synchronized double entityLatency() {
+		return entityLatency;
+	}
+
+	private void adjust() {
+		if (latencyTarget > 0 && entityLatency > 0) {
+			long size = (long) (latencyTarget / entityLatency);
+			if (maxBatch > 0) {
+				size = Math.min(maxBatch, size);
+			}
+			batchSize = (int) Math.min(Integer.MAX_VALUE,
+					Math.max(minBatch, size));
+		}
+
+		// a floor: filled batches are already flushed by isDue, so the time
+		// arrivals take to fill them must not shorten the interval below it
+		double next = flushDuration / DUTY_CYCLE;
+		interval = Math.max(minInterval, Math.min(maxInterval, (long) next));
+	}
+
+	private static double average(double average, double sample) {
+		return (average == 0) ? sample : average + WEIGHT * (sample - average);
+	}
+}
@@ -0,0 +1,18 @@
+package com.workshare.micro.api.entity.persistence;
+
+/**
+ * Thrown when the {@link EntityJournal} cannot write to its segment files, in
+ * which case accepted entities would not survive a crash.
+ */
+public class JournalException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public JournalException(String message) {
+		super(message);
+	}
+
+	public JournalException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,103 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+
+/**
+ * Writes batches of entities with multi-row inserts, one round trip per
+ * statement, where a JDBC batch costs a round trip per row on most drivers.
+ * Each statement stays within the limits of the drivers: at most the given
+ * number of rows, at most 65535 parameters (the limit of the MySQL protocol)
+ * and about the given number of bytes (max_allowed_packet on MySQL).<br/>
+ * The statements are not run in a transaction: when one fails, the ones
+ * before it stay committed and are reported by a
+ * {@link PartialWriteException}.
+ */
+public class MultiRowWriter {
+
+	static final int MAX_PARAMETERS = 65535;
+	private static final int ROW_PARAMETERS = 4;
+	// the SQL of a row, the parameter headers and some slack
+	private static final int ROW_OVERHEAD = 128;
+
+	private final int maxRows;
+	private final int maxBytes;
+
+	/**
+	 * @param maxRows
+	 *            the rows written by a single statement, 1 or less writes a
+	 *            JDBC batch instead
+	 * @param maxBytes
+	 *            the approximate size of a statement (0 means unbounded)
+	 */
+	public MultiRowWriter(int maxRows, int maxBytes) {
+		this.maxRows = Math.min(maxRows, MAX_PARAMETERS / ROW_PARAMETERS);
+		this.maxBytes = (maxBytes > 0) ? maxBytes : Integer.MAX_VALUE;
+	}
+
+	public boolean isEnabled() {
+		return maxRows > 1;
+	}
+
+	/**
+	 * @throws PartialWriteException
+	 *             if a statement failed after others stored some entities
+	 */
+	public void write(EntityDao dao, Collection<Entity> entities) {
+		if (!isEnabled()) {
+			dao.createBatch(entities);
+			return;
+		}
+
+		List<Entity> written = new ArrayList<Entity>(entities.size());
+		List<Entity> rows = new ArrayList<Entity>(Math.min(maxRows,
+				entities.size()));
+		long bytes = 0;
+		try {
+			for (Entity entity : entities) {
+				long size = size(entity);
+				if (!rows.isEmpty()
+						&& (rows.size() >= maxRows || bytes + size > maxBytes)) {
+					insert(dao, rows);
+					written.addAll(rows);
+					rows.clear();
+					bytes = 0;
+				}
+				rows.add(entity);
+				bytes += size;
+			}
+			if (!rows.isEmpty()) {
+				insert(dao, rows);
+			}
+		} catch (RuntimeException ex) {
+			if (written.isEmpty()) {
+				throw ex;
+			}
+			throw new PartialWriteException(written, ex);
+		}
+	}
+
+	private void insert(EntityDao dao, List<Entity> rows) {
+		if (rows.size() == 1) {
+			dao.create(rows.get(0));
+		} else {
+			dao.createRows(new ArrayList<Entity>(rows));
+		}
+	}
+
+	/**
+	 * @return the bytes of the row at worst, 3 per character as UTF-8
+	 */
+	static long size(Entity entity) {
+		return ROW_OVERHEAD + 3L * (length(entity.getId())
+				+ length(entity.getContent()) + length(entity.getCreateUser()));
+	}
+
+	private static int length(String value) {
+		return (value == null) ? 0 : value.length();
+	}
+}
@@ -0,0 +1,29 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.util.List;
+
+import com.workshare.micro.api.entity.model.Entity;
+
+/**
+ * Thrown when a write made of several statements fails after some of them
+ * were committed: the entities they stored stay stored.
+ */
+public class PartialWriteException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Entity> written;
+
+	public PartialWriteException(List<Entity> written, Throwable cause) {
+		super("Unable to write all the entities, " + written.size()
+				+ " were stored", cause);
+		this.written = written;
+	}
+
+	/**
+	 * @return the entities stored before the failure
+	 */
+	public List<Entity> getWritten() {
+		return written;
+	}
+}
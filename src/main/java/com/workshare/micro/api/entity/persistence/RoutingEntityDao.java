@@ -0,0 +1,384 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.exceptions.DBIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+
+/**
+ * Sends the writes to the primary database and spreads the reads over the
+ * replicas, round robin. So that a client always reads its own writes, an
+ * entity written or deleted less than the maximum replica lag ago is read from
+ * the primary, and so are the listings, pages and exports while any write is
+ * that recent. A replica that fails is skipped, and its reads go to the
+ * primary, until the retry time has elapsed.
+ *
+ * The reads that drive deletes, and the ids loading the filter, always go to
+ * the primary: a lagging replica would miss the latest entities.
+ */
+public class RoutingEntityDao implements EntityDao {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(RoutingEntityDao.class);
+	private static final long NEVER = Long.MIN_VALUE;
+
+	private final EntityDao primary;
+	private final List<Replica> replicas;
+	private final AtomicInteger next;
+	private final long maxLag;
+	private final long retry;
+
+	private final ConcurrentHashMap<String, Long> recent;
+	private final ConcurrentLinkedQueue<Write> recentOrder;
+	private final AtomicBoolean pruning;
+	private volatile long lastWrite;
+
+	private final Meter replicaReads;
+	private final Meter primaryReads;
+	private final Meter failovers;
+
+	public RoutingEntityDao(EntityDao primary, List<EntityDao> replicas,
+			Monitor monitor, MicroConfig config) {
+		this.primary = primary;
+		this.replicas = new ArrayList<Replica>(replicas.size());
+		for (EntityDao replica : replicas) {
+			this.replicas.add(new Replica(replica));
+		}
+		this.next = new AtomicInteger();
+		this.maxLag = config.replicaLagMax();
+		this.retry = config.replicaRetry();
+
+		this.recent = new ConcurrentHashMap<String, Long>();
+		this.recentOrder = new ConcurrentLinkedQueue<Write>();
+		this.pruning = new AtomicBoolean();
+		this.lastWrite = NEVER;
+
+		this.replicaReads = monitor.metrics().register(
+				"entity.routing.reads.replica", new Meter());
+		this.primaryReads = monitor.metrics().register(
+				"entity.routing.reads.primary", new Meter());
+		this.failovers = monitor.metrics().register(
+				"entity.routing.failovers", new Meter());
+	}
+
+	@Override
+	public void create(Entity entity) {
+		primary.create(entity);
+		written(entity.getId());
+	}
+
+	@Override
+	public void createBatch(Collection<Entity> entities) {
+		primary.createBatch(entities);
+		for (Entity entity : entities) {
+			written(entity.getId());
+		}
+	}
+
+	@Override
+	public int createRows(Collection<Entity> entities) {
+		int created = primary.createRows(entities);
+		for (Entity entity : entities) {
+			written(entity.getId());
+		}
+		return created;
+	}
+
+	@Override
+	public Entity get(final String id) {
+		if (isRecent(id)) {
+			primaryReads.mark();
+			return primary.get(id);
+		}
+		return read(new Read<Entity>() {
+			@Override
+			Entity from(EntityDao dao) {
+				return dao.get(id);
+			}
+		});
+	}
+
+	@Override
+	public List<Entity> get() {
+		return readLatest(new Read<List<Entity>>() {
+			@Override
+			List<Entity> from(EntityDao dao) {
+				return dao.get();
+			}
+		});
+	}
+
+	@Override
+	public List<Entity> get(final Collection<String> ids) {
+		for (String id : ids) {
+			if (isRecent(id)) {
+				primaryReads.mark();
+				return primary.get(ids);
+			}
+		}
+		return read(new Read<List<Entity>>() {
+			@Override
+			List<Entity> from(EntityDao dao) {
+				return dao.get(ids);
+			}
+		});
+	}
+
+	@Override
+	public List<Entity> pageById(final String after, final int limit) {
+		return readLatest(new Read<List<Entity>>() {
+			@Override
+			List<Entity> from(EntityDao dao) {
+				return dao.pageById(after, limit);
+			}
+		});
+	}
+
+	@Override
+	public List<Entity> pageByCreateDate(final Date date, final String after,
+			final int limit) {
+		return readLatest(new Read<List<Entity>>() {
+			@Override
+			List<Entity> from(EntityDao dao) {
+				return dao.pageByCreateDate(date, after, limit);
+			}
+		});
+	}
+
+	@Override
+	public List<Entity> pageByCreateDate(final Date date, final String after,
+			final Date before, final int limit) {
+		return readLatest(new Read<List<Entity>>() {
+			@Override
+			List<Entity> from(EntityDao dao) {
+				return dao.pageByCreateDate(date, after, before, limit);
+			}
+		});
+	}
+
+	@Override
+	public List<Entity> pageByUser(final String createUser, final Date date,
+			final String after, final Date before, final int limit) {
+		return readLatest(new Read<List<Entity>>() {
+			@Override
+			List<Entity> from(EntityDao dao) {
+				return dao.pageByUser(createUser, date, after, before, limit);
+			}
+		});
+	}
+
+	@Override
+	public ResultIterator<Entity> stream(final int fetchSize) {
+		return readLatest(new Read<ResultIterator<Entity>>() {
+			@Override
+			ResultIterator<Entity> from(EntityDao dao) {
+				return dao.stream(fetchSize);
+			}
+		});
+	}
+
+	@Override
+	public ResultIterator<String> ids() {
+		return primary.ids();
+	}
+
+	@Override
+	public List<String> ids(Collection<String> ids) {
+		return primary.ids(ids);
+	}
+
+	@Override
+	public void delete(String id) {
+		primary.delete(id);
+		written(id);
+	}
+
+	@Override
+	public void deleteBatch(Collection<String> ids) {
+		primary.deleteBatch(ids);
+		for (String id : ids) {
+			written(id);
+		}
+	}
+
+	@Override
+	public int delete(Collection<String> ids) {
+		int deleted = primary.delete(ids);
+		for (String id : ids) {
+			written(id);
+		}
+		return deleted;
+	}
+
+	@Override
+	public List<String> idsCreatedBefore(Date before, String createUser,
+			String after, int limit) {
+		return primary.idsCreatedBefore(before, createUser, after, limit);
+	}
+
+	@Override
+	public List<String> idsExpired(Date before, int limit) {
+		return primary.idsExpired(before, limit);
+	}
+
+	@Override
+	public Date oldestCreateDate() {
+		return readLatest(new Read<Date>() {
+			@Override
+			Date from(EntityDao dao) {
+				return dao.oldestCreateDate();
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		for (Replica replica : replicas) {
+			replica.dao.close();
+		}
+		primary.close();
+	}
+
+	/**
+	 * @return the number of replicas currently receiving reads
+	 */
+	public int availableReplicas() {
+		long now = now();
+		int available = 0;
+		for (Replica replica : replicas) {
+			if (replica.isAvailable(now)) {
+				available++;
+			}
+		}
+		return available;
+	}
+
+	private <T> T read(Read<T> read) {
+		Replica replica = pick();
+		if (replica != null) {
+			try {
+				T result = read.from(replica.dao);
+				replicaReads.mark();
+				return result;
+			} catch (DBIException ex) {
+				logger.warn("Replica failed, reading from the primary for the next "
+						+ retry + "ms", ex);
+				replica.failed(now() + retry);
+				failovers.mark();
+			}
+		}
+
+		primaryReads.mark();
+		return read.from(primary);
+	}
+
+	/**
+	 * Reads from the primary while any write is more recent than the maximum
+	 * replica lag: the rows a range read returns are not known in advance.
+	 */
+	private <T> T readLatest(Read<T> read) {
+		long last = lastWrite;
+		if (last != NEVER && now() - last < maxLag) {
+			primaryReads.mark();
+			return read.from(primary);
+		}
+		return read(read);
+	}
+
+	private Replica pick() {
+		long now = now();
+		int size = replicas.size();
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get((next.getAndIncrement() & Integer.MAX_VALUE)
+					% size);
+			if (replica.isAvailable(now)) {
+				return replica;
+			}
+		}
+		return null;
+	}
+
+	private void written(String id) {
+		if (maxLag <= 0) {
+			return;
+		}
+
+		long now = now();
+		lastWrite = now;
+		recent.put(id, now);
+		recentOrder.add(new Write(id, now));
+
+		// a single pruner at a time, so that the head it checks is the one
+		// it polls
+		if (pruning.compareAndSet(false, true)) {
+			try {
+				Write oldest;
+				while ((oldest = recentOrder.peek()) != null
+						&& now - oldest.time >= maxLag) {
+					recentOrder.poll();
+					// unless written again since
+					recent.remove(oldest.id, oldest.time);
+				}
+			} finally {
+				pruning.set(false);
+			}
+		}
+	}
+
+	private boolean isRecent(String id) {
+		Long time = recent.get(id);
+		return time != null && now() - time < maxLag;
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private static class Write {
+		private final String id;
+		private final long time;
+
+		Write(String id, long time) {
+			this.id = id;
+			this.time = time;
+		}
+	}
+
+	private abstract static class Read<T> {
+		abstract T from(EntityDao dao);
+	}
+
+	private static class Replica {
+		private final EntityDao dao;
+		private volatile long downUntil;
+
+		Replica(EntityDao dao) {
+			this.dao = dao;
+			this.downUntil = Long.MIN_VALUE;
+		}
+
+		boolean isAvailable(long now) {
+			return now >= downUntil;
+		}
+
+		void failed(long until) {
+			downUntil = until;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.workshare.micro.api.entity.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.workshare.micro.api.entity.model.Entity;
+
+/**
+ * A lock-free buffer of entities waiting to be written to the database.<br/>
+ * Producers append to one of several stripes, picked by thread, so that
+ * concurrent requests do not contend on the same queue tail. The flusher
+ * drains every stripe element by element, so an entity is either drained by a
+ * flush or left for the next one: it is never lost nor drained twice.<br/>
+ * Pending entities are also indexed by id, and stay visible to readers until
+ * the flusher confirms they have been written. Their number is kept apart, so
+ * that producers can reserve room for an entity before adding it.
+ */
+public class WriteBuffer {
+
+	private static class Stripe {
+		final ConcurrentLinkedQueue<Entity> queue = new ConcurrentLinkedQueue<Entity>();
+		final AtomicInteger size = new AtomicInteger();
+	}
+
+	private final Stripe[] stripes;
+	private final int mask;
+	private final ConcurrentHashMap<String, Entity> pending;
+	private final ConcurrentHashMap<String, Entity> writing;
+	private final AtomicInteger held;
+
+	public WriteBuffer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public WriteBuffer(int concurrency) {
+		int count = 1;
+		while (count < concurrency) {
+			count <<= 1;
+		}
+
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.mask = count - 1;
+		this.pending = new ConcurrentHashMap<String, Entity>(16, 0.75f, count);
+		this.writing = new ConcurrentHashMap<String, Entity>();
+		this.held = new AtomicInteger();
+	}
+
+	/**
+	 * Reserves room for an entity about to be {@link #add added}, so that
+	 * concurrent producers never take the buffer past the given maximum.
+	 *
+	 * @return false if the buffer holds the maximum number of entities
+	 *         already, pending or reserved; always true if the maximum is 0
+	 */
+	public boolean reserve(int max) {
+		while (true) {
+			int current = held.get();
+			if (max > 0 && current >= max) {
+				return false;
+			}
+			if (held.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives back a reservation that will not be used to add an entity.
+	 */
+	public void release() {
+		held.decrementAndGet();
+	}
+
+	/**
+	 * Adds the entity to the buffer, never blocking the caller, in the room
+	 * {@link #reserve reserved} for it. Replacing an entity with the same id
+	 * gives back the room of the replaced one.
+	 *
+	 * @return the number of buffered entities, including this one
+	 */
+	public int add(Entity entity) {
+		final Stripe stripe = stripe();
+		if (pending.put(entity.getId(), entity) != null) {
+			held.decrementAndGet();
+		}
+		stripe.size.incrementAndGet();
+		stripe.queue.offer(entity);
+		return size();
+	}
+
+	/**
+	 * @return the pending entity with the given id, or null if there's none
+	 */
+	public Entity get(String id) {
+		return pending.get(id);
+	}
+
+	/**
+	 * Removes the entity from the buffer: if it was not drained yet it will not
+	 * be returned by the next {@link #drain()}.
+	 */
+	public Entity remove(String id) {
+		Entity removed = pending.remove(id);
+		if (removed != null) {
+			held.decrementAndGet();
+		}
+		return removed;
+	}
+
+	/**
+	 * @return true if the entity with the given id has been drained and is
+	 *         being written
+	 */
+	public boolean isWriting(String id) {
+		return writing.containsKey(id);
+	}
+
+	/**
+	 * @return a snapshot of the pending entities
+	 */
+	public Collection<Entity> values() {
+		return new ArrayList<Entity>(pending.values());
+	}
+
+	/**
+	 * Drains every stripe. Entities removed after being added are skipped, and
+	 * an id added more than once is returned only once, with its latest
+	 * value. The drained entities are still visible through {@link #get} until
+	 * they are {@link #written}.
+	 */
+	public List<Entity> drain() {
+		final Map<String, Entity> drained = new LinkedHashMap<String, Entity>();
+		for (Stripe stripe : stripes) {
+			int count = stripe.size.get();
+			int taken = 0;
+			Entity entity;
+			while (taken < count && (entity = stripe.queue.poll()) != null) {
+				taken++;
+				writing.put(entity.getId(), entity);
+				if (pending.get(entity.getId()) == entity) {
+					drained.put(entity.getId(), entity);
+				} else {
+					writing.remove(entity.getId(), entity);
+				}
+			}
+			stripe.size.addAndGet(-taken);
+		}
+
+		return new ArrayList<Entity>(drained.values());
+	}
+
+	/**
+	 * Marks the entities as written, removing them from the pending ones
+	 * unless they have been replaced in the meantime.
+	 *
+	 * @return the ids of the entities removed while they were being written,
+	 *         which are now stored although they should not be
+	 */
+	public List<String> written(Collection<Entity> entities) {
+		List<String> removed = new ArrayList<String>();
+		for (Entity entity : entities) {
+			writing.remove(entity.getId(), entity);
+			if (pending.remove(entity.getId(), entity)) {
+				held.decrementAndGet();
+			} else if (!pending.containsKey(entity.getId())) {
+				removed.add(entity.getId());
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Puts back the drained entities that could not be written, so that the
+	 * next {@link #drain()} returns them again unless they have been removed
+	 * or replaced in the meantime.
+	 */
+	public void requeue(Collection<Entity> entities) {
+		final Stripe stripe = stripe();
+		for (Entity entity : entities) {
+			writing.remove(entity.getId(), entity);
+			if (pending.get(entity.getId()) == entity) {
+				stripe.size.incrementAndGet();
+				stripe.queue.offer(entity);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entities waiting to be drained
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size.get();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of entities held until written, including the ones
+	 *         being drained or written, and the room reserved
+	 */
+	public int held() {
+		return held.get();
+	}
+
+	private Stripe stripe() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32));
+		hash ^= (hash >>> 16);
+		return stripes[hash & mask];
+	}
+}
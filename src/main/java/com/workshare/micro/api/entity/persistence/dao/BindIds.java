@@ -0,0 +1,115 @@
+package com.workshare.micro.api.entity.persistence.dao;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Collection;
+
+import org.skife.jdbi.v2.Binding;
+import org.skife.jdbi.v2.ColonPrefixNamedParamStatementRewriter;
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.Binder;
+import org.skife.jdbi.v2.sqlobject.BinderFactory;
+import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizerFactory;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
+import org.skife.jdbi.v2.tweak.RewrittenStatement;
+import org.skife.jdbi.v2.tweak.StatementRewriter;
+
+/**
+ * Binds a collection of ids to an IN list: <code>&lt;name&gt;</code> in the
+ * statement is replaced by one named parameter per id. Unlike JDBI's
+ * BindIn it does not need StringTemplate. An empty collection matches
+ * nothing.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.PARAMETER })
+@BindingAnnotation(BindIds.IdsBinderFactory.class)
+@SqlStatementCustomizingAnnotation(BindIds.IdsCustomizerFactory.class)
+public @interface BindIds {
+
+	String value();
+
+	public static class IdsBinderFactory implements BinderFactory {
+		@Override
+		public Binder<BindIds, Collection<String>> build(Annotation annotation) {
+			return new Binder<BindIds, Collection<String>>() {
+				@Override
+				public void bind(SQLStatement<?> q, BindIds bind,
+						Collection<String> ids) {
+					int i = 0;
+					for (String id : ids) {
+						q.bind(bind.value() + "_" + i++, id);
+					}
+				}
+			};
+		}
+	}
+
+	public static class IdsCustomizerFactory implements
+			SqlStatementCustomizerFactory {
+		@Override
+		public SqlStatementCustomizer createForMethod(Annotation annotation,
+				@SuppressWarnings("rawtypes") Class sqlObjectType,
+				Method method) {
+			throw new UnsupportedOperationException(
+					"BindIds applies to parameters only");
+		}
+
+		@Override
+		public SqlStatementCustomizer createForType(Annotation annotation,
+				@SuppressWarnings("rawtypes") Class sqlObjectType) {
+			throw new UnsupportedOperationException(
+					"BindIds applies to parameters only");
+		}
+
+		@Override
+		public SqlStatementCustomizer createForParameter(
+				Annotation annotation,
+				@SuppressWarnings("rawtypes") Class sqlObjectType,
+				Method method, Object arg) {
+			final String name = ((BindIds) annotation).value();
+			final int size = ((Collection<?>) arg).size();
+			return new SqlStatementCustomizer() {
+				@Override
+				public void apply(@SuppressWarnings("rawtypes") SQLStatement q)
+						throws SQLException {
+					q.setStatementRewriter(new IdsRewriter(name, size));
+				}
+			};
+		}
+	}
+
+	public static class IdsRewriter implements StatementRewriter {
+		private final String name;
+		private final int size;
+		private final StatementRewriter delegate;
+
+		IdsRewriter(String name, int size) {
+			this.name = name;
+			this.size = size;
+			this.delegate = new ColonPrefixNamedParamStatementRewriter();
+		}
+
+		@Override
+		public RewrittenStatement rewrite(String sql, Binding params,
+				StatementContext ctx) {
+			StringBuilder list = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				list.append((i == 0) ? ":" : ", :").append(name).append('_')
+						.append(i);
+			}
+			if (size == 0) {
+				list.append("NULL");
+			}
+			return delegate.rewrite(sql.replace("<" + name + ">", list),
+					params, ctx);
+		}
+	}
+}
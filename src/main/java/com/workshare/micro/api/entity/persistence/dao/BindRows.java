@@ -0,0 +1,186 @@
+package com.workshare.micro.api.entity.persistence.dao;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.skife.jdbi.v2.Binding;
+import org.skife.jdbi.v2.ColonPrefixNamedParamStatementRewriter;
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.sqlobject.Binder;
+import org.skife.jdbi.v2.sqlobject.BinderFactory;
+import org.skife.jdbi.v2.sqlobject.BindingAnnotation;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizerFactory;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
+import org.skife.jdbi.v2.tweak.RewrittenStatement;
+import org.skife.jdbi.v2.tweak.StatementRewriter;
+
+/**
+ * Binds a collection of beans to the rows of a multi-row VALUES list:
+ * <code>&lt;name&gt;</code> in the statement is replaced by the row template
+ * once per bean, each parameter of the template bound to the bean property of
+ * the same name, as BindBean does for a single row.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.PARAMETER })
+@BindingAnnotation(BindRows.RowsBinderFactory.class)
+@SqlStatementCustomizingAnnotation(BindRows.RowsCustomizerFactory.class)
+public @interface BindRows {
+
+	static final Pattern PARAM = Pattern.compile(":(\\w+)");
+
+	String value();
+
+	/**
+	 * the row, such as <code>(:id, :content)</code>
+	 */
+	String row();
+
+	public static class RowsBinderFactory implements BinderFactory {
+		@Override
+		public Binder<BindRows, Collection<?>> build(Annotation annotation) {
+			return new Binder<BindRows, Collection<?>>() {
+				@Override
+				public void bind(SQLStatement<?> q, BindRows bind,
+						Collection<?> rows) {
+					List<String> params = params(bind.row());
+					Map<String, Method> getters = null;
+					int i = 0;
+					for (Object row : rows) {
+						if (getters == null) {
+							getters = getters(row.getClass(), params);
+						}
+						for (String param : params) {
+							q.bind(bind.value() + "_" + i + "_" + param,
+									get(getters.get(param), row));
+						}
+						i++;
+					}
+				}
+			};
+		}
+
+		static List<String> params(String row) {
+			List<String> params = new ArrayList<String>();
+			Matcher matcher = PARAM.matcher(row);
+			while (matcher.find()) {
+				params.add(matcher.group(1));
+			}
+			return params;
+		}
+
+		private static Map<String, Method> getters(Class<?> type,
+				List<String> params) {
+			Map<String, Method> getters = new HashMap<String, Method>();
+			try {
+				for (PropertyDescriptor property : Introspector.getBeanInfo(
+						type).getPropertyDescriptors()) {
+					if (params.contains(property.getName())) {
+						getters.put(property.getName(),
+								property.getReadMethod());
+					}
+				}
+			} catch (IntrospectionException ex) {
+				throw new IllegalArgumentException(ex);
+			}
+			for (String param : params) {
+				if (getters.get(param) == null) {
+					throw new IllegalArgumentException("No property " + param
+							+ " in " + type);
+				}
+			}
+			return getters;
+		}
+
+		private static Object get(Method getter, Object bean) {
+			try {
+				return getter.invoke(bean);
+			} catch (IllegalAccessException ex) {
+				throw new IllegalArgumentException(ex);
+			} catch (InvocationTargetException ex) {
+				throw new IllegalArgumentException(ex.getCause());
+			}
+		}
+	}
+
+	public static class RowsCustomizerFactory implements
+			SqlStatementCustomizerFactory {
+		@Override
+		public SqlStatementCustomizer createForMethod(Annotation annotation,
+				@SuppressWarnings("rawtypes") Class sqlObjectType,
+				Method method) {
+			throw new UnsupportedOperationException(
+					"BindRows applies to parameters only");
+		}
+
+		@Override
+		public SqlStatementCustomizer createForType(Annotation annotation,
+				@SuppressWarnings("rawtypes") Class sqlObjectType) {
+			throw new UnsupportedOperationException(
+					"BindRows applies to parameters only");
+		}
+
+		@Override
+		public SqlStatementCustomizer createForParameter(
+				Annotation annotation,
+				@SuppressWarnings("rawtypes") Class sqlObjectType,
+				Method method, Object arg) {
+			final BindRows bind = (BindRows) annotation;
+			final int size = ((Collection<?>) arg).size();
+			return new SqlStatementCustomizer() {
+				@Override
+				public void apply(@SuppressWarnings("rawtypes") SQLStatement q)
+						throws SQLException {
+					q.setStatementRewriter(new RowsRewriter(bind.value(), bind
+							.row(), size));
+				}
+			};
+		}
+	}
+
+	public static class RowsRewriter implements StatementRewriter {
+		private final String name;
+		private final String row;
+		private final int size;
+		private final StatementRewriter delegate;
+
+		RowsRewriter(String name, String row, int size) {
+			this.name = name;
+			this.row = row;
+			this.size = size;
+			this.delegate = new ColonPrefixNamedParamStatementRewriter();
+		}
+
+		@Override
+		public RewrittenStatement rewrite(String sql, Binding params,
+				StatementContext ctx) {
+			StringBuilder rows = new StringBuilder();
+			for (int i = 0; i < size; i++) {
+				if (i > 0) {
+					rows.append(", ");
+				}
+				rows.append(PARAM.matcher(row).replaceAll(
+						":" + name + "_" + i + "_$1"));
+			}
+			return delegate.rewrite(sql.replace("<" + name + ">", rows),
+					params, ctx);
+		}
+	}
+}
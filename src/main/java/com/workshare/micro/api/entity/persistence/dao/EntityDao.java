@@ -1,23 +1,41 @@
 package com.workshare.micro.api.entity.persistence.dao;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.BindBean;
 import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.FetchSize;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
+import org.skife.jdbi.v2.util.TimestampMapper;
 
 import com.workshare.micro.api.entity.model.Entity;
 
 @RegisterMapper(EntityMapperJdbi.class)
 public interface EntityDao {
-	public static final String create = "INSERT INTO ENTITIES (ID, CONTENT, CREATE_DATE, CREATE_USER) VALUES (:id, :content, NOW(), :createUser)";
+	public static final String create = "INSERT INTO ENTITIES (ID, CONTENT, CREATE_DATE, CREATE_USER) VALUES (:id, :content, COALESCE(:createDate, NOW()), :createUser)";
+	public static final String createRow = "(:id, :content, COALESCE(:createDate, NOW()), :createUser)";
+	public static final String createRows = "INSERT INTO ENTITIES (ID, CONTENT, CREATE_DATE, CREATE_USER) VALUES <rows>";
 	public static final String selectById = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES WHERE ID = :id";
+	public static final String selectByIds = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES WHERE ID IN (<ids>)";
 	public static final String selectCollection = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES";
+	public static final String selectPageById = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES WHERE ID > :after ORDER BY ID LIMIT :limit";
+	public static final String selectPageByCreateDate = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES WHERE CREATE_DATE >= :date AND (CREATE_DATE > :date OR ID > :after) ORDER BY CREATE_DATE, ID LIMIT :limit";
+	public static final String selectPageByCreateDateRange = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES WHERE CREATE_DATE >= :date AND (CREATE_DATE > :date OR ID > :after) AND CREATE_DATE < :before ORDER BY CREATE_DATE, ID LIMIT :limit";
+	public static final String selectPageByUser = "SELECT ID, CONTENT, CREATE_DATE, CREATE_USER FROM ENTITIES WHERE CREATE_USER = :createUser AND CREATE_DATE >= :date AND (CREATE_DATE > :date OR ID > :after) AND CREATE_DATE < :before ORDER BY CREATE_DATE, ID LIMIT :limit";
+	public static final String selectIds = "SELECT ID FROM ENTITIES";
+	public static final String selectIdsByIds = "SELECT ID FROM ENTITIES WHERE ID IN (<ids>)";
+	public static final String selectIdsCreatedBefore = "SELECT ID FROM ENTITIES WHERE CREATE_DATE < :before AND CREATE_USER = COALESCE(:createUser, CREATE_USER) AND ID > :after ORDER BY ID LIMIT :limit";
+	public static final String selectIdsExpired = "SELECT ID FROM ENTITIES WHERE CREATE_DATE < :before ORDER BY CREATE_DATE, ID LIMIT :limit";
+	public static final String selectOldestCreateDate = "SELECT MIN(CREATE_DATE) FROM ENTITIES";
 	public static final String delete = "DELETE FROM ENTITIES WHERE ID= :id";
+	public static final String deleteByIds = "DELETE FROM ENTITIES WHERE ID IN (<ids>)";
 
 	@SqlUpdate(create)
 	public void create(@BindBean Entity entity);
@@ -25,15 +43,119 @@ public interface EntityDao {
 	@SqlBatch(create)
 	public void createBatch(@BindBean Collection<Entity> entityCollection);
 
+	/**
+	 * inserts all the entities with a single multi-row statement, in one
+	 * round trip whatever the driver
+	 */
+	@SqlUpdate(createRows)
+	public int createRows(
+			@BindRows(value = "rows", row = createRow) Collection<Entity> entities);
+
 	@SqlQuery(selectById)
 	public Entity get(@Bind("id") String id);
 
 	@SqlQuery(selectCollection)
 	public List<Entity> get();
 
+	/**
+	 * returns the entities with the given ids, in no particular order
+	 */
+	@SqlQuery(selectByIds)
+	public List<Entity> get(@BindIds("ids") Collection<String> ids);
+
+	/**
+	 * returns at most limit entities with an id greater than the given one,
+	 * ordered by id
+	 */
+	@SqlQuery(selectPageById)
+	public List<Entity> pageById(@Bind("after") String after,
+			@Bind("limit") int limit);
+
+	/**
+	 * returns at most limit entities created after the given date, or at the
+	 * same date with an id greater than the given one, ordered by create date
+	 * and id
+	 */
+	@SqlQuery(selectPageByCreateDate)
+	public List<Entity> pageByCreateDate(@Bind("date") Date date,
+			@Bind("after") String after, @Bind("limit") int limit);
+
+	/**
+	 * as pageByCreateDate, but only for the entities created before the given
+	 * date
+	 */
+	@SqlQuery(selectPageByCreateDateRange)
+	public List<Entity> pageByCreateDate(@Bind("date") Date date,
+			@Bind("after") String after, @Bind("before") Date before,
+			@Bind("limit") int limit);
+
+	/**
+	 * as pageByCreateDate, but only for the entities created by the given user
+	 * before the given date
+	 */
+	@SqlQuery(selectPageByUser)
+	public List<Entity> pageByUser(@Bind("createUser") String createUser,
+			@Bind("date") Date date, @Bind("after") String after,
+			@Bind("before") Date before, @Bind("limit") int limit);
+
+	/**
+	 * iterates over all the stored entities, fetching fetchSize rows at a time
+	 * (0 leaves it to the driver), the iterator must be closed once done
+	 */
+	@SqlQuery(selectCollection)
+	public ResultIterator<Entity> stream(@FetchSize int fetchSize);
+
+	/**
+	 * iterates over the ids of all the stored entities, the iterator must be
+	 * closed once done
+	 */
+	@SqlQuery(selectIds)
+	public ResultIterator<String> ids();
+
+	/**
+	 * returns which of the given ids belong to stored entities, in no
+	 * particular order
+	 */
+	@SqlQuery(selectIdsByIds)
+	public List<String> ids(@BindIds("ids") Collection<String> ids);
+
 	@SqlUpdate(delete)
 	public void delete(@Bind("id") String id);
 
+	@SqlBatch(delete)
+	public void deleteBatch(@Bind("id") Collection<String> ids);
+
+	/**
+	 * deletes the entities with the given ids, returning how many were deleted
+	 */
+	@SqlUpdate(deleteByIds)
+	public int delete(@BindIds("ids") Collection<String> ids);
+
+	/**
+	 * returns at most limit ids, greater than the given one, of the entities
+	 * created before the given date, and by the given user unless null,
+	 * ordered by id
+	 */
+	@SqlQuery(selectIdsCreatedBefore)
+	public List<String> idsCreatedBefore(@Bind("before") Date before,
+			@Bind("createUser") String createUser, @Bind("after") String after,
+			@Bind("limit") int limit);
+
+	/**
+	 * returns the ids of the oldest entities created before the given date, at
+	 * most limit of them, ordered by create date and id
+	 */
+	@SqlQuery(selectIdsExpired)
+	public List<String> idsExpired(@Bind("before") Date before,
+			@Bind("limit") int limit);
+
+	/**
+	 * returns the create date of the oldest entity, null if there are none
+	 */
+	@SqlQuery(selectOldestCreateDate)
+	@Mapper(TimestampMapper.class)
+	public Date oldestCreateDate();
+
 	/**
 	 * close with no args is used to close the connection
 	 */
@@ -0,0 +1,77 @@
+package com.workshare.micro.api.entity.persistence.dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+
+import com.codahale.metrics.Timer;
+import com.workshare.micro.api.metrics.Monitor;
+
+/**
+ * Records the time of each statement in a timer named after it: the name of
+ * the constant holding its SQL in the DAO (create, selectById...), or the
+ * name of the DAO method running it otherwise.
+ */
+public class StatementTimingCollector implements TimingCollector {
+
+	private final Monitor monitor;
+	private final String prefix;
+	private final Map<String, String> names;
+	private final ConcurrentHashMap<String, Timer> timers;
+
+	/**
+	 * @param dao
+	 *            the DAO whose public String constants name its statements
+	 */
+	public StatementTimingCollector(Monitor monitor, String prefix,
+			Class<?> dao) {
+		this.monitor = monitor;
+		this.prefix = prefix;
+		this.names = new HashMap<String, String>();
+		this.timers = new ConcurrentHashMap<String, Timer>();
+
+		for (Field field : dao.getFields()) {
+			if (Modifier.isStatic(field.getModifiers())
+					&& field.getType() == String.class) {
+				try {
+					names.put((String) field.get(null), field.getName());
+				} catch (IllegalAccessException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void collect(long elapsedTime, StatementContext ctx) {
+		timer(name(ctx)).update(elapsedTime, TimeUnit.NANOSECONDS);
+	}
+
+	private String name(StatementContext ctx) {
+		String name = names.get(ctx.getRawSql());
+		if (name == null) {
+			name = (ctx.getSqlObjectMethod() == null) ? "other" : ctx
+					.getSqlObjectMethod().getName();
+		}
+		return name;
+	}
+
+	private Timer timer(String name) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = monitor.metrics().register(prefix + "." + name,
+						created);
+			}
+		}
+		return timer;
+	}
+}
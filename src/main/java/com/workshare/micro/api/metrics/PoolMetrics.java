@@ -0,0 +1,96 @@
+package com.workshare.micro.api.metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.jolbox.bonecp.ConnectionHandle;
+import com.jolbox.bonecp.hooks.AbstractConnectionHook;
+import com.jolbox.bonecp.hooks.AcquireFailConfig;
+
+/**
+ * Instruments a connection pool: installed as its connection hook, it counts
+ * the connections open and leased, and the failures to open one; used as the
+ * connection factory of a DBI, it times how long each connection is waited
+ * for. All of them are registered under the given name:
+ * <ul>
+ * <li>name.active: connections leased</li>
+ * <li>name.idle: connections open and not leased</li>
+ * <li>name.wait: time waited for a connection</li>
+ * <li>name.failures: attempts to open a connection that failed</li>
+ * </ul>
+ */
+public class PoolMetrics extends AbstractConnectionHook implements
+		ConnectionFactory {
+
+	private final DataSource dataSource;
+	private final AtomicInteger open;
+	private final AtomicInteger leased;
+	private final Timer wait;
+	private final Meter failures;
+
+	public PoolMetrics(DataSource dataSource, Monitor monitor, String name) {
+		this.dataSource = dataSource;
+		this.open = new AtomicInteger();
+		this.leased = new AtomicInteger();
+
+		monitor.metrics().register(name + ".active", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return leased.get();
+			}
+		});
+		monitor.metrics().register(name + ".idle", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return Math.max(0, open.get() - leased.get());
+			}
+		});
+		this.wait = monitor.metrics().register(name + ".wait", new Timer());
+		this.failures = monitor.metrics().register(name + ".failures",
+				new Meter());
+	}
+
+	@Override
+	public Connection openConnection() throws SQLException {
+		Timer.Context context = wait.time();
+		try {
+			return dataSource.getConnection();
+		} finally {
+			context.stop();
+		}
+	}
+
+	@Override
+	public void onAcquire(ConnectionHandle connection) {
+		open.incrementAndGet();
+	}
+
+	@Override
+	public void onDestroy(ConnectionHandle connection) {
+		open.decrementAndGet();
+	}
+
+	@Override
+	public void onCheckOut(ConnectionHandle connection) {
+		leased.incrementAndGet();
+	}
+
+	@Override
+	public void onCheckIn(ConnectionHandle connection) {
+		leased.decrementAndGet();
+	}
+
+	@Override
+	public boolean onAcquireFail(Throwable cause, AcquireFailConfig config) {
+		failures.mark();
+		return super.onAcquireFail(cause, config);
+	}
+}
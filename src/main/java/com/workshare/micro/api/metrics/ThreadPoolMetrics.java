@@ -0,0 +1,82 @@
+package com.workshare.micro.api.metrics;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * Instruments the thread pool of the embedded server, handed over by Main as
+ * servlet context attributes. The server classes are not visible from the
+ * webapp, so the pool is read by reflection. All the gauges are registered
+ * under the given name:
+ * <ul>
+ * <li>name.threads: threads started</li>
+ * <li>name.idle: threads waiting for a request</li>
+ * <li>name.active: threads serving a request</li>
+ * <li>name.max: most threads the pool will start</li>
+ * <li>name.queued: requests waiting for a thread</li>
+ * </ul>
+ */
+public class ThreadPoolMetrics {
+
+	/** context attribute holding the server thread pool */
+	public static final String POOL_ATTRIBUTE = "http.threads.pool";
+
+	/** context attribute holding the queue of the server thread pool */
+	public static final String QUEUE_ATTRIBUTE = "http.threads.queue";
+
+	private final Object pool;
+
+	public ThreadPoolMetrics(Object pool, final Collection<?> queue,
+			Monitor monitor, String name) {
+		this.pool = pool;
+
+		monitor.metrics().register(name + ".threads", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return read("getThreads");
+			}
+		});
+		monitor.metrics().register(name + ".idle", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return read("getIdleThreads");
+			}
+		});
+		monitor.metrics().register(name + ".active", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return Math.max(0, read("getThreads")
+						- read("getIdleThreads"));
+			}
+		});
+		monitor.metrics().register(name + ".max", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return read("getMaxThreads");
+			}
+		});
+		if (queue != null) {
+			monitor.metrics().register(name + ".queued",
+					new Gauge<Integer>() {
+						@Override
+						public Integer getValue() {
+							return queue.size();
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return the value of the given getter of the pool, or -1 if it has none
+	 */
+	private int read(String getter) {
+		try {
+			Method method = pool.getClass().getMethod(getter);
+			return ((Number) method.invoke(pool)).intValue();
+		} catch (Exception ex) {
+			return -1;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.workshare.micro.api.metrics.provider;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,12 +23,14 @@ import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
-import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.workshare.micro.api.JacksonJsonProvider;
+import com.workshare.micro.api.entity.model.Entity;
 
 /**
  * A Jersey provider which adds validation to the basic Jackson Json provider.
@@ -63,6 +66,7 @@ public class ValidatingJacksonJsonProvider implements MessageBodyReader<Object>,
         }
     };
 
+    // writes with the shared mapper, as every other provider does
     @Inject
     private JacksonJsonProvider delegate;
     @Inject
@@ -101,10 +105,45 @@ public class ValidatingJacksonJsonProvider implements MessageBodyReader<Object>,
         return delegate.readFrom(type, genericType, annotations, mediaType, httpHeaders, entityStream);
     }
 
+    /**
+     * Writes an entity from its JSON bytes, when the shared mapper already
+     * wrote them once, skipping the serialization.
+     */
     @Override
     public void writeTo(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
             OutputStream entityStream) throws IOException {
-        delegate.writeTo(t, type, genericType, annotations, mediaType, httpHeaders, entityStream);
+        ObjectMapper mapper = cachingMapper(t, type, annotations, mediaType);
+        if (mapper != null) {
+            Entity entity = (Entity) t;
+            byte[] json = entity.serialized(mapper);
+            if (json == null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                delegate.writeTo(t, type, genericType, annotations, mediaType, httpHeaders, buffer);
+                json = buffer.toByteArray();
+                entity.serialized(mapper, json);
+            }
+            entityStream.write(json);
+        } else {
+            delegate.writeTo(t, type, genericType, annotations, mediaType, httpHeaders, entityStream);
+        }
+    }
+
+    /**
+     * @return the shared mapper, when it writes this entity with no view or
+     *         feature from the annotations, or null when the JSON must not be
+     *         reused
+     */
+    private ObjectMapper cachingMapper(Object t, Class<?> type, Annotation[] annotations, MediaType mediaType) {
+        if (!(t instanceof Entity) || !MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType)) {
+            return null;
+        }
+        for (Annotation annotation : annotations) {
+            if (annotation.annotationType().getName().startsWith("com.fasterxml.jackson.")) {
+                return null;
+            }
+        }
+        ObjectMapper mapper = delegate.locateMapper(type, mediaType);
+        return (mapper == JacksonJsonProvider.mapper()) ? mapper : null;
     }
 
     @Override
@@ -114,7 +153,9 @@ public class ValidatingJacksonJsonProvider implements MessageBodyReader<Object>,
 
     @Override
     public long getSize(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
-        return delegate.getSize(t, type, genericType, annotations, mediaType);
+        ObjectMapper mapper = cachingMapper(t, type, annotations, mediaType);
+        byte[] json = (mapper != null) ? ((Entity) t).serialized(mapper) : null;
+        return (json != null) ? json.length : delegate.getSize(t, type, genericType, annotations, mediaType);
     }
 
     @Override
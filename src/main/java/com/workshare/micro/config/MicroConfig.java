@@ -32,6 +32,174 @@ public interface MicroConfig extends Config {
 	@DefaultValue("select 1 from dual")
 	String jdbcCheck();
 
+	@Key("jdbc.pool.partitions")
+	@DefaultValue("2")
+	int jdbcPoolPartitions();
+
+	@Key("jdbc.pool.min")
+	@DefaultValue("2")
+	int jdbcPoolMin();
+
+	@Key("jdbc.pool.max")
+	@DefaultValue("10")
+	int jdbcPoolMax();
+
+	@Key("jdbc.pool.statements")
+	@DefaultValue("50")
+	int jdbcPoolStatements();
+
+	@Key("jdbc.pool.timeout")
+	@DefaultValue("10000")
+	long jdbcPoolTimeout();
+
+	@Key("jdbc.replicas")
+	@DefaultValue("")
+	String jdbcReplicas();
+
+	@Key("replica.lag.max")
+	@DefaultValue("1000")
+	long replicaLagMax();
+
+	@Key("replica.retry")
+	@DefaultValue("5000")
+	long replicaRetry();
+
+	@Key("http.acceptors")
+	@DefaultValue("0")
+	int httpAcceptors();
+
+	@Key("http.accept.queue")
+	@DefaultValue("0")
+	int httpAcceptQueue();
+
+	@Key("http.threads.min")
+	@DefaultValue("8")
+	int httpThreadsMin();
+
+	@Key("http.threads.max")
+	@DefaultValue("254")
+	int httpThreadsMax();
+
+	@Key("http.threads.queue")
+	@DefaultValue("0")
+	int httpThreadsQueue();
+
+	@Key("http.threads.idle")
+	@DefaultValue("60000")
+	int httpThreadsIdle();
+
+	@Key("http.idle.timeout")
+	@DefaultValue("60000")
+	int httpIdleTimeout();
+
+	@Key("http.idle.low")
+	@DefaultValue("5000")
+	int httpIdleLow();
+
+	@Key("http.requests.active")
+	@DefaultValue("0")
+	int httpRequestsActive();
+
+	@Key("http.requests.wait")
+	@DefaultValue("30000")
+	long httpRequestsWait();
+
+	@Key("cache.buffer.max")
+	@DefaultValue("100000")
+	int cacheBufferMax();
+
+	@Key("cache.buffer.flush")
+	@DefaultValue("50000")
+	int cacheBufferFlush();
+
+	@Key("cache.read.capacity")
+	@DefaultValue("10000")
+	int cacheReadCapacity();
+
+	@Key("filter.capacity")
+	@DefaultValue("1000000")
+	int filterCapacity();
+
+	@Key("filter.fpp")
+	@DefaultValue("0.01")
+	double filterFpp();
+
+	@Key("filter.exclusive")
+	@DefaultValue("false")
+	boolean filterExclusive();
+
+	@Key("journal.enabled")
+	@DefaultValue("true")
+	boolean journalEnabled();
+
+	@Key("journal.dir")
+	@DefaultValue("journal")
+	String journalDir();
+
+	@Key("journal.segment.size")
+	@DefaultValue("16777216")
+	int journalSegmentSize();
+
+	@Key("flush.threads")
+	@DefaultValue("4")
+	int flushThreads();
+
+	@Key("flush.chunk.size")
+	@DefaultValue("1000")
+	int flushChunkSize();
+
+	@Key("flush.chunk.min")
+	@DefaultValue("100")
+	int flushChunkMin();
+
+	@Key("flush.interval.min")
+	@DefaultValue("50")
+	long flushIntervalMin();
+
+	@Key("flush.interval.max")
+	@DefaultValue("1000")
+	long flushIntervalMax();
+
+	@Key("flush.latency.target")
+	@DefaultValue("100")
+	long flushLatencyTarget();
+
+	@Key("insert.rows.max")
+	@DefaultValue("500")
+	int insertRowsMax();
+
+	@Key("insert.bytes.max")
+	@DefaultValue("1048576")
+	int insertBytesMax();
+
+	@Key("export.fetch.size")
+	@DefaultValue("1000")
+	int exportFetchSize();
+
+	@Key("multiget.chunk.size")
+	@DefaultValue("100")
+	int multigetChunkSize();
+
+	@Key("bulk.chunk.size")
+	@DefaultValue("1000")
+	int bulkChunkSize();
+
+	@Key("expiry.retention")
+	@DefaultValue("0")
+	long expiryRetention();
+
+	@Key("expiry.interval")
+	@DefaultValue("60000")
+	long expiryInterval();
+
+	@Key("expiry.chunk.size")
+	@DefaultValue("500")
+	int expiryChunkSize();
+
+	@Key("expiry.chunk.pause")
+	@DefaultValue("100")
+	long expiryChunkPause();
+
 	void list(PrintStream out);
 
 	void list(PrintWriter out);
@@ -0,0 +1,203 @@
+package com.workshare.micro.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter that grows with the number of keys it holds. Keys are added
+ * to the newest stage; once a stage reaches its capacity a new one is added,
+ * twice as large and with half the false positive probability, so that the
+ * overall probability stays below the configured one however many keys are
+ * added.<br/>
+ * Lookups and insertions are lock free; only the creation of a new stage is
+ * synchronized. Keys cannot be removed.
+ */
+public class ScalableBloomFilter {
+
+	private static final double TIGHTENING_RATIO = 0.5;
+	private static final int MAX_STAGE_CAPACITY = 1 << 28;
+
+	private final int initialCapacity;
+	private final double fpp;
+	private volatile Stage[] stages;
+
+	/**
+	 * @param expectedInsertions
+	 *            the number of keys the first stage is sized for
+	 * @param fpp
+	 *            the false positive probability to stay below
+	 */
+	public ScalableBloomFilter(int expectedInsertions, double fpp) {
+		if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+			throw new IllegalArgumentException("Invalid bloom filter "
+					+ expectedInsertions + " keys at fpp " + fpp);
+		}
+
+		this.initialCapacity = expectedInsertions;
+		this.fpp = fpp;
+		this.stages = new Stage[] { new Stage(initialCapacity,
+				fpp * (1 - TIGHTENING_RATIO)) };
+	}
+
+	/**
+	 * @return false if the key was definitely never added, true if it might
+	 *         have been
+	 */
+	public boolean mightContain(String key) {
+		final long hash1 = hash(key);
+		final long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L);
+		for (Stage stage : stages) {
+			if (stage.mightContain(hash1, hash2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void put(String key) {
+		final long hash1 = hash(key);
+		final long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L);
+		for (Stage stage : stages) {
+			if (stage.mightContain(hash1, hash2)) {
+				return;
+			}
+		}
+
+		Stage[] current = stages;
+		Stage last = current[current.length - 1];
+		if (last.count.get() >= last.capacity) {
+			last = grow(current);
+		}
+		last.put(hash1, hash2);
+	}
+
+	/**
+	 * @return the number of keys added
+	 */
+	public long size() {
+		long size = 0;
+		for (Stage stage : stages) {
+			size += stage.count.get();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the memory used by the bit sets, in bytes
+	 */
+	public long bytes() {
+		long bytes = 0;
+		for (Stage stage : stages) {
+			bytes += stage.bits.length() * 8L;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the estimated false positive probability given the keys added
+	 *         so far
+	 */
+	public double expectedFpp() {
+		double negative = 1.0;
+		for (Stage stage : stages) {
+			negative *= 1.0 - stage.expectedFpp();
+		}
+		return 1.0 - negative;
+	}
+
+	public double targetFpp() {
+		return fpp;
+	}
+
+	private synchronized Stage grow(Stage[] seen) {
+		Stage[] current = stages;
+		Stage last = current[current.length - 1];
+		if (current != seen && last.count.get() < last.capacity) {
+			return last;
+		}
+
+		int capacity = (int) Math.min(MAX_STAGE_CAPACITY,
+				(long) last.capacity * 2);
+		Stage next = new Stage(capacity, last.fpp * TIGHTENING_RATIO);
+
+		Stage[] grown = new Stage[current.length + 1];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[current.length] = next;
+		stages = grown;
+		return next;
+	}
+
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long hash) {
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+		return hash;
+	}
+
+	private static class Stage {
+		final int capacity;
+		final double fpp;
+		final AtomicLongArray bits;
+		final long bitSize;
+		final int hashes;
+		final AtomicInteger count;
+
+		Stage(int capacity, double fpp) {
+			long optimalBits = (long) (-capacity * Math.log(fpp) / (Math
+					.log(2) * Math.log(2)));
+			this.capacity = capacity;
+			this.fpp = fpp;
+			this.bits = new AtomicLongArray(
+					(int) ((Math.max(64, optimalBits) + 63) / 64));
+			this.bitSize = bits.length() * 64L;
+			this.hashes = Math.max(1,
+					(int) Math.round((double) bitSize / capacity * Math.log(2)));
+			this.count = new AtomicInteger();
+		}
+
+		boolean mightContain(long hash1, long hash2) {
+			for (int i = 0; i < hashes; i++) {
+				long index = index(hash1, hash2, i);
+				if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void put(long hash1, long hash2) {
+			for (int i = 0; i < hashes; i++) {
+				long index = index(hash1, hash2, i);
+				int word = (int) (index >>> 6);
+				long mask = 1L << index;
+				long value;
+				do {
+					value = bits.get(word);
+				} while ((value & mask) == 0
+						&& !bits.compareAndSet(word, value, value | mask));
+			}
+			count.incrementAndGet();
+		}
+
+		double expectedFpp() {
+			return Math.pow(1 - Math.exp(-(double) hashes * count.get()
+					/ bitSize), hashes);
+		}
+
+		private long index(long hash1, long hash2, int i) {
+			long combined = hash1 + i * hash2;
+			return (combined & Long.MAX_VALUE) % bitSize;
+		}
+	}
+}
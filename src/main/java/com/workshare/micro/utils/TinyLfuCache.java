@@ -0,0 +1,197 @@
+package com.workshare.micro.utils;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache using the W-TinyLFU policy: new entries land in a small LRU
+ * window and, when pushed out of it, are admitted to the main segmented LRU
+ * only if they have been requested more often than the entry they would
+ * replace. Popular entries therefore survive scans of keys seen only once.<br/>
+ * The cache is split in independently locked segments, each with its own
+ * frequency sketch. A capacity of zero disables caching altogether.
+ */
+public class TinyLfuCache<K, V> {
+
+	public interface EvictionListener<K, V> {
+		void evicted(K key, V value);
+	}
+
+	private static final int MIN_SEGMENT_CAPACITY = 64;
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final EvictionListener<K, V> listener;
+
+	public TinyLfuCache(int capacity, EvictionListener<K, V> listener) {
+		int count = 1;
+		int concurrency = Runtime.getRuntime().availableProcessors();
+		while (count < concurrency
+				&& capacity / (count << 1) >= MIN_SEGMENT_CAPACITY) {
+			count <<= 1;
+		}
+
+		this.listener = listener;
+		// segments are inner classes of a generic class: no generic arrays
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Segment[] segments = new TinyLfuCache.Segment[count];
+		this.segments = segments;
+		for (int i = 0; i < count; i++) {
+			int share = capacity / count + (i < capacity % count ? 1 : 0);
+			segments[i] = new Segment(share);
+		}
+		this.segmentMask = count - 1;
+	}
+
+	/**
+	 * @return the cached value, or null if the key is not cached
+	 */
+	public V get(K key) {
+		return segmentFor(key).get(key);
+	}
+
+	public void put(K key, V value) {
+		segmentFor(key).put(key, value);
+	}
+
+	public V remove(K key) {
+		return segmentFor(key).remove(key);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private Segment segmentFor(Object key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & segmentMask];
+	}
+
+	private class Segment {
+		private final int capacity;
+		private final int windowMax;
+		private final int mainMax;
+		private final int protectedMax;
+		private final FrequencySketch sketch;
+		private final LinkedHashMap<K, V> window;
+		private final LinkedHashMap<K, V> probation;
+		private final LinkedHashMap<K, V> protection;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			this.windowMax = Math.max(1, capacity / 100);
+			this.mainMax = Math.max(0, capacity - windowMax);
+			this.protectedMax = mainMax * 8 / 10;
+			this.sketch = new FrequencySketch(capacity);
+			this.window = new LinkedHashMap<K, V>(16, 0.75f, true);
+			this.probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+			this.protection = new LinkedHashMap<K, V>(16, 0.75f, true);
+		}
+
+		synchronized V get(K key) {
+			if (capacity == 0) {
+				return null;
+			}
+
+			sketch.increment(key);
+			V value = window.get(key);
+			if (value == null) {
+				value = protection.get(key);
+			}
+			if (value == null) {
+				value = probation.remove(key);
+				if (value != null) {
+					promote(key, value);
+				}
+			}
+			return value;
+		}
+
+		synchronized void put(K key, V value) {
+			if (capacity == 0) {
+				return;
+			}
+
+			sketch.increment(key);
+			if (window.containsKey(key)) {
+				window.put(key, value);
+			} else if (protection.containsKey(key)) {
+				protection.put(key, value);
+			} else if (probation.containsKey(key)) {
+				probation.remove(key);
+				promote(key, value);
+			} else {
+				window.put(key, value);
+				if (window.size() > windowMax) {
+					Map.Entry<K, V> candidate = removeEldest(window);
+					admit(candidate.getKey(), candidate.getValue());
+				}
+			}
+		}
+
+		synchronized V remove(K key) {
+			V value = window.remove(key);
+			if (value == null) {
+				value = protection.remove(key);
+			}
+			if (value == null) {
+				value = probation.remove(key);
+			}
+			return value;
+		}
+
+		synchronized int size() {
+			return window.size() + probation.size() + protection.size();
+		}
+
+		private void promote(K key, V value) {
+			protection.put(key, value);
+			if (protection.size() > protectedMax) {
+				Map.Entry<K, V> demoted = removeEldest(protection);
+				probation.put(demoted.getKey(), demoted.getValue());
+			}
+		}
+
+		private void admit(K key, V value) {
+			if (probation.size() + protection.size() < mainMax) {
+				probation.put(key, value);
+				return;
+			} else if (mainMax == 0) {
+				evicted(key, value);
+				return;
+			}
+
+			LinkedHashMap<K, V> victims = probation.isEmpty() ? protection
+					: probation;
+			K victim = victims.keySet().iterator().next();
+			if (sketch.frequency(key) > sketch.frequency(victim)) {
+				evicted(victim, victims.remove(victim));
+				probation.put(key, value);
+			} else {
+				evicted(key, value);
+			}
+		}
+
+		private Map.Entry<K, V> removeEldest(LinkedHashMap<K, V> map) {
+			Iterator<Map.Entry<K, V>> entries = map.entrySet().iterator();
+			Map.Entry<K, V> eldest = entries.next();
+			Map.Entry<K, V> copy = new AbstractMap.SimpleImmutableEntry<K, V>(
+					eldest);
+			entries.remove();
+			return copy;
+		}
+
+		private void evicted(K key, V value) {
+			if (listener != null) {
+				listener.evicted(key, value);
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.workshare.servlet;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.google.inject.Injector;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+
+/**
+ * Admits at most <code>http.requests.active</code> requests at a time. The
+ * others are suspended with a Jetty continuation, which hands their worker
+ * thread back to the pool, and resumed in order as the admitted ones
+ * complete, each taking over the permit of the request it follows; the ones
+ * still waiting <code>http.requests.wait</code> milliseconds after they were
+ * suspended are answered 503. A limit of 0 admits every request.
+ */
+public class AdmissionFilter implements javax.servlet.Filter {
+
+    private static final String TICKET = AdmissionFilter.class.getName() + ".ticket";
+
+    private Semaphore permits;
+    private Queue<Continuation> waiting;
+    private long timeout;
+    private Meter expired;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        Injector injector = (Injector)config.getServletContext().getAttribute(Injector.class.getName());
+        init(injector.getInstance(MicroConfig.class), injector.getInstance(Monitor.class));
+    }
+
+    void init(MicroConfig config, Monitor monitor) {
+        permits = (config.httpRequestsActive() > 0) ? new Semaphore(config.httpRequestsActive(), true) : null;
+        waiting = new ConcurrentLinkedQueue<Continuation>();
+        timeout = config.httpRequestsWait();
+
+        expired = monitor.metrics().meter("http.requests.expired");
+        monitor.metrics().register("http.requests.suspended", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return waiting.size();
+            }
+        });
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (permits == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        Continuation continuation = ContinuationSupport.getContinuation(request);
+        // claimed by whichever comes first of the permit hand-over and the expiry
+        AtomicBoolean ticket = (AtomicBoolean)continuation.getAttribute(TICKET);
+        if (continuation.isExpired() && (ticket == null || ticket.compareAndSet(false, true))) {
+            waiting.remove(continuation);
+            expired.mark();
+            HttpServletResponse httpResponse = (HttpServletResponse)response;
+            httpResponse.setHeader("Retry-After", "1");
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        if (ticket != null || permits.tryAcquire()) {
+            try {
+                chain.doFilter(request, response);
+            }
+            finally {
+                handOver();
+            }
+        } else {
+            continuation.setAttribute(TICKET, new AtomicBoolean());
+            continuation.setTimeout(timeout);
+            continuation.suspend();
+            waiting.add(continuation);
+            // a permit released before the request was queued would not resume it
+            if (permits.tryAcquire()) {
+                handOver();
+            }
+        }
+    }
+
+    /**
+     * Passes the permit held by the caller to the first waiting request, or
+     * gives it back when none is waiting.
+     */
+    private void handOver() {
+        do {
+            Continuation next;
+            while ((next = waiting.poll()) != null) {
+                AtomicBoolean ticket = (AtomicBoolean)next.getAttribute(TICKET);
+                if (ticket.compareAndSet(false, true)) {
+                    next.resume();
+                    return;
+                }
+            }
+            permits.release();
+        } while (!waiting.isEmpty() && permits.tryAcquire());
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
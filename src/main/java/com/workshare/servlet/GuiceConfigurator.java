@@ -4,14 +4,21 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
 import javax.sql.DataSource;
 import javax.validation.Validation;
 import javax.validation.Validator;
 
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.TimingCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,8 +36,13 @@ import com.wordnik.swagger.jaxrs.ApiListingResourceJSON;
 import com.wordnik.swagger.jaxrs.ApiListingResourceXML;
 import com.workshare.micro.api.entity.EntityApi;
 import com.workshare.micro.api.entity.persistence.CachingEntityDao;
+import com.workshare.micro.api.entity.persistence.EntityVersion;
+import com.workshare.micro.api.entity.persistence.RoutingEntityDao;
 import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.entity.persistence.dao.StatementTimingCollector;
 import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.api.metrics.PoolMetrics;
+import com.workshare.micro.api.metrics.ThreadPoolMetrics;
 import com.workshare.micro.config.MicroConfig;
 import com.workshare.micro.config.MicroConfigService;
 import com.workshare.micro.utils.UUIDGenerator;
@@ -43,6 +55,14 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 	private static final String JERSEY_API_JSON_POJO_MAPPING_FEATURE = "com.sun.jersey.api.json.POJOMappingFeature";
 	private static final String JERSEY_CONFIG_PROPERTY_PACKAGES = "com.sun.jersey.config.property.packages";
 
+	private ServletContext servletContext;
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		servletContext = event.getServletContext();
+		super.contextInitialized(event);
+	}
+
 	@Override
 	protected Injector getInjector() {
 
@@ -60,6 +80,7 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 					protected void configureServlets() {
 
 						// bind generic objects
+						bind(MicroConfig.class).toInstance(config);
 						bind(UUIDGenerator.class).asEagerSingleton();
 						bind(ApiListingResourceJSON.class);
 						bind(ApiListingResourceXML.class);
@@ -70,31 +91,76 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 						JmxReporter.forRegistry(monitor.metrics()).build()
 								.start();
 
+						// the server threads, when started from Main
+						Object threads = servletContext
+								.getAttribute(ThreadPoolMetrics.POOL_ATTRIBUTE);
+						if (threads != null) {
+							new ThreadPoolMetrics(threads,
+									(Collection<?>) servletContext
+											.getAttribute(ThreadPoolMetrics.QUEUE_ATTRIBUTE),
+									monitor, "http.threads");
+						}
+
 						// DataBase connectionPool
-						DataSource dataSource = createPool();
+						BoneCPDataSource dataSource = createPool(config
+								.jdbcUrl());
 						monitor.checks().register("health.database",
-								createDbHealthCheck(dataSource));
+								createDbHealthCheck(dataSource,
+										config.jdbcUrl()));
 
-						// Create the database DAO
-						DBI dbi = new DBI(dataSource);
+						// Create the database DAO, timing each statement
+						StatementTimingCollector timings = new StatementTimingCollector(
+								monitor, "database.statement", EntityDao.class);
+						DBI dbi = createDbi(dataSource, monitor,
+								"database.pool", timings);
 						EntityDao dbDao = dbi.onDemand(EntityDao.class);
 
+						// route the reads to the replicas, if any
+						List<EntityDao> replicas = new ArrayList<EntityDao>();
+						for (String url : config.jdbcReplicas().split(",")) {
+							if (url.trim().length() > 0) {
+								String name = "database.replica."
+										+ replicas.size();
+								BoneCPDataSource replica = createPool(url
+										.trim());
+								monitor.checks().register("health." + name,
+										createDbHealthCheck(replica, url.trim()));
+								replicas.add(createDbi(replica, monitor,
+										name + ".pool", timings).onDemand(
+										EntityDao.class));
+							}
+						}
+						if (!replicas.isEmpty()) {
+							dbDao = new RoutingEntityDao(dbDao, replicas,
+									monitor, config);
+						}
+
 						// Init flyWay databaseMigrating tools
 						Flyway flyway = new Flyway();
 						flyway.setDataSource(dataSource);
 						flyway.migrate();
 
 						// create and bind the caching DAO
-						EntityDao cachingDao = new CachingEntityDao(dbDao,
+						CachingEntityDao cachingDao = new CachingEntityDao(dbDao,
 								Executors.newSingleThreadScheduledExecutor(),
-								monitor);
+								Executors.newFixedThreadPool(Math.max(1,
+										config.flushThreads())), monitor,
+								config);
+						cachingDao.recoverJournal();
+						cachingDao.loadFilter();
 						bind(EntityDao.class).toInstance(cachingDao);
+						bind(EntityVersion.class).toInstance(
+								cachingDao.version());
 
 						// Validation Service
 						Validator validator = Validation
 								.buildDefaultValidatorFactory().getValidator();
 						bind(Validator.class).toInstance(validator);
 
+						// scheduler of the background tasks of the APIs
+						bind(ScheduledExecutorService.class).toInstance(
+								Executors.newSingleThreadScheduledExecutor());
+
 						// Bind APIs
 						bind(EntityApi.class).asEagerSingleton();
 
@@ -103,7 +169,7 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 					}
 
 					private HealthCheck createDbHealthCheck(
-							final DataSource database) {
+							final DataSource database, final String url) {
 						return new HealthCheck() {
 							@Override
 							protected Result check() throws Exception {
@@ -112,7 +178,7 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 								} else {
 									return HealthCheck.Result
 											.unhealthy("Cannot connect to "
-													+ config.jdbcUrl());
+													+ url);
 								}
 							}
 
@@ -139,7 +205,18 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 						};
 					}
 
-					private DataSource createPool() {
+					private DBI createDbi(BoneCPDataSource dataSource,
+							Monitor monitor, String name,
+							TimingCollector timings) {
+						PoolMetrics metrics = new PoolMetrics(dataSource,
+								monitor, name);
+						dataSource.setConnectionHook(metrics);
+						DBI dbi = new DBI(metrics);
+						dbi.setTimingCollector(timings);
+						return dbi;
+					}
+
+					private BoneCPDataSource createPool(String url) {
 						try {
 							Class.forName(config.jdbcDriver());
 						} catch (ClassNotFoundException ex) {
@@ -150,9 +227,19 @@ public class GuiceConfigurator extends GuiceServletContextListener {
 						}
 
 						BoneCPConfig boneConfig = new BoneCPConfig();
-						boneConfig.setJdbcUrl(config.jdbcUrl());
+						boneConfig.setJdbcUrl(url);
 						boneConfig.setUsername(config.jdbcUser());
 						boneConfig.setPassword(config.jdbcPass());
+						boneConfig.setPartitionCount(config
+								.jdbcPoolPartitions());
+						boneConfig.setMinConnectionsPerPartition(config
+								.jdbcPoolMin());
+						boneConfig.setMaxConnectionsPerPartition(config
+								.jdbcPoolMax());
+						boneConfig.setStatementsCacheSize(config
+								.jdbcPoolStatements());
+						boneConfig.setConnectionTimeoutInMs(config
+								.jdbcPoolTimeout());
 						return new BoneCPDataSource(boneConfig);
 					}
 
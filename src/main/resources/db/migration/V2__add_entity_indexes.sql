@@ -0,0 +1,2 @@
+CREATE INDEX IDX_ENTITIES_DATE ON ENTITIES (CREATE_DATE, ID);
+CREATE INDEX IDX_ENTITIES_USER_DATE ON ENTITIES (CREATE_USER, CREATE_DATE, ID);
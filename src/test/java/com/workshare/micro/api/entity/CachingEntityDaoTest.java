@@ -1,25 +1,41 @@
 package com.workshare.micro.api.entity;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -28,13 +44,18 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.skife.jdbi.v2.ResultIterator;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.BufferFullException;
 import com.workshare.micro.api.entity.persistence.CachingEntityDao;
 import com.workshare.micro.api.entity.persistence.dao.EntityDao;
 import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
 
 @SuppressWarnings({ "unchecked", "rawtypes" })
 public class CachingEntityDaoTest {
@@ -45,8 +66,10 @@ public class CachingEntityDaoTest {
 	private EntityDao delegate;
 	private CachingEntityDao dao;
 	private ScheduledExecutorService scheduler;
+	private ExecutorService flusher;
 	private Runnable scheduledTask;
 	private Monitor monitor;
+	private MicroConfig config;
 
 	@Before
 	public void before() {
@@ -56,13 +79,21 @@ public class CachingEntityDaoTest {
 		MetricRegistry registry = mock(MetricRegistry.class);
 		monitor = mock(Monitor.class);
 		when(monitor.metrics()).thenReturn(registry);
+		config = mock(MicroConfig.class);
+		flusher = Executors.newFixedThreadPool(4);
 
 		makeTheEntity();
 	}
 
+	@After
+	public void after() {
+		flusher.shutdownNow();
+	}
+
 	private void makeTheEntity() {
 		scheduler = mock(ScheduledExecutorService.class);
-		dao = new CachingEntityDao(delegate, scheduler, monitor);
+		dao = new CachingEntityDao(delegate, scheduler, flusher, monitor,
+				config);
 
 		ArgumentCaptor<Runnable> runnableCaptured = ArgumentCaptor
 				.forClass(Runnable.class);
@@ -97,6 +128,40 @@ public class CachingEntityDaoTest {
 		assertEquals(1, batch.getValue().size());
 	}
 
+	@Test
+	public void shouldChangeVersionOnWritesAndFlushes() {
+		String initial = dao.version().get();
+
+		dao.create(entity);
+		String created = dao.version().get();
+		scheduledTask.run();
+		String flushed = dao.version().get();
+		scheduledTask.run();
+
+		assertFalse(initial.equals(created));
+		assertFalse(created.equals(flushed));
+		assertEquals(flushed, dao.version().get());
+
+		dao.delete(entity.getId());
+
+		assertFalse(flushed.equals(dao.version().get()));
+	}
+
+	@Test
+	public void shouldRetryDeletesAfterFailedFlush() {
+		doThrow(new RuntimeException("boom")).doNothing().when(delegate)
+				.deleteBatch(any(Collection.class));
+		dao.delete("a");
+
+		scheduledTask.run();
+		dao.create(entity);
+		scheduledTask.run();
+
+		verify(delegate, times(2)).deleteBatch(Arrays.asList("a"));
+		verify(delegate).createBatch(any(Collection.class));
+		assertNull(dao.get("a"));
+	}
+
 	@Test
 	public void shouldClearTheCacheAfterFlush() {
 
@@ -105,11 +170,373 @@ public class CachingEntityDaoTest {
 		scheduledTask.run();
 		scheduledTask.run();
 
+		verify(delegate, times(1)).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldWriteEachEntityOnceWhenCreatedTwice() {
+		dao.create(entity);
+		dao.create(entity);
+
+		scheduledTask.run();
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(delegate).createBatch(batch.capture());
+		assertEquals(1, batch.getValue().size());
+	}
+
+	@Test
+	public void shouldNotWriteEntityDeletedBeforeFlush() {
+		dao.create(entity);
+		dao.delete(entity.getId());
+
+		scheduledTask.run();
+
+		verify(delegate, never()).createBatch(any(Collection.class));
+		verify(delegate, never()).deleteBatch(any(Collection.class));
+		verify(delegate, never()).delete(anyString());
+	}
+
+	@Test
+	public void shouldWritePartitionsConcurrentlyByIdHash() {
+		when(config.flushThreads()).thenReturn(4);
+		makeTheEntity();
+		final List<Collection> batches = Collections
+				.synchronizedList(new ArrayList<Collection>());
+		Mockito.doAnswer(new Answer() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				batches.add(new ArrayList(
+						(Collection) invocation.getArguments()[0]));
+				return null;
+			}
+		}).when(delegate).createBatch(any(Collection.class));
+
+		for (int i = 0; i < 100; i++) {
+			dao.create(new Entity("id" + i, "content", null, "user"));
+		}
+		scheduledTask.run();
+
+		int written = 0;
+		for (Collection batch : batches) {
+			Set<Integer> partitions = new HashSet<Integer>();
+			for (Object each : batch) {
+				int hash = ((Entity) each).getId().hashCode();
+				partitions.add((hash & Integer.MAX_VALUE) % 4);
+			}
+			assertEquals(1, partitions.size());
+			written += batch.size();
+		}
+		assertEquals(4, batches.size());
+		assertEquals(100, written);
+	}
+
+	@Test
+	public void shouldWriteBatchesOfChunkSize() {
+		when(config.flushChunkSize()).thenReturn(10);
+		makeTheEntity();
+		final List<Integer> sizes = new ArrayList<Integer>();
+		Mockito.doAnswer(new Answer() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				sizes.add(((Collection) invocation.getArguments()[0]).size());
+				return null;
+			}
+		}).when(delegate).createBatch(any(Collection.class));
+
+		for (int i = 0; i < 25; i++) {
+			dao.create(new Entity("id" + i, "content", null, "user"));
+		}
+		scheduledTask.run();
+
+		assertEquals(Arrays.asList(10, 10, 5), sizes);
+	}
+
+	@Test
+	public void shouldRetryPartitionsThatFailedOnNextFlush() {
+		Mockito.doThrow(new RuntimeException("boom")).doNothing()
+				.when(delegate).createBatch(any(Collection.class));
+		dao.create(entity);
+
+		scheduledTask.run();
+		assertNotNull(dao.get(entity.getId()));
+		scheduledTask.run();
+		scheduledTask.run();
+
+		verify(delegate, times(2)).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldNotRetryEntitiesStoredByPartlyAppliedWrite() {
+		Mockito.doThrow(new RuntimeException("boom")).doNothing()
+				.when(delegate).createBatch(any(Collection.class));
+		when(delegate.ids(Arrays.asList("a", "b"))).thenReturn(
+				Arrays.asList("a"));
+		dao.create(entity("a", 1000));
+		dao.create(entity("b", 2000));
+
+		scheduledTask.run();
+		scheduledTask.run();
+
 		ArgumentCaptor<Collection> batch = ArgumentCaptor
 				.forClass(Collection.class);
 		verify(delegate, times(2)).createBatch(batch.capture());
-		Collection secondInvocationValue = batch.getAllValues().get(1);
-		assertEquals(0, secondInvocationValue.size());
+		assertEquals(Arrays.asList(entity("b", 2000)), batch.getValue());
+	}
+
+	@Test
+	public void shouldNotFlushBeforeIntervalElapsed() {
+		when(config.flushIntervalMin()).thenReturn(60000L);
+		when(config.flushIntervalMax()).thenReturn(60000L);
+		makeTheEntity();
+		dao.create(entity);
+		scheduledTask.run();
+
+		dao.create(new Entity("456", "content", null, "user"));
+		scheduledTask.run();
+
+		verify(delegate, times(1)).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldFlushBeforeIntervalElapsedWhenRequested() {
+		when(config.flushIntervalMin()).thenReturn(60000L);
+		when(config.flushIntervalMax()).thenReturn(60000L);
+		when(config.cacheBufferFlush()).thenReturn(1);
+		makeTheEntity();
+		dao.create(entity);
+		scheduledTask.run();
+
+		dao.create(new Entity("456", "content", null, "user"));
+		scheduledTask.run();
+
+		verify(delegate, times(2)).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldPublishFlushDecisions() {
+		when(config.flushIntervalMin()).thenReturn(50L);
+		when(config.flushIntervalMax()).thenReturn(1000L);
+		makeTheEntity();
+		ArgumentCaptor<Gauge> interval = ArgumentCaptor.forClass(Gauge.class);
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.flush.interval"), interval.capture());
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.flush.batch"), any(Gauge.class));
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.flush.arrival.rate"), any(Gauge.class));
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.flush.latency"), any(Gauge.class));
+
+		assertEquals(50L, interval.getValue().getValue());
+	}
+
+	@Test
+	public void shouldTimeEachFlushPartition() {
+		when(config.flushThreads()).thenReturn(2);
+		makeTheEntity();
+		ArgumentCaptor<Timer> timer = ArgumentCaptor.forClass(Timer.class);
+		verify(monitor.metrics()).register(eq("entity.flush.partition.1"),
+				timer.capture());
+
+		dao.create(new Entity("a", "content", null, "user"));
+		dao.create(new Entity("b", "content", null, "user"));
+		scheduledTask.run();
+
+		assertEquals(1, timer.getValue().getCount());
+	}
+
+	@Test
+	public void shouldReturnCachedAndStoredEntitiesOnlyOnce() {
+		when(delegate.get()).thenReturn(Arrays.asList(entity));
+		dao.create(entity);
+
+		List<Entity> tokens = dao.get();
+
+		assertEquals(1, tokens.size());
+	}
+
+	@Test
+	public void shouldMergeBufferedEntitiesIntoPageById() {
+		when(delegate.pageById("", 3)).thenReturn(
+				Arrays.asList(entity("a", 1), entity("c", 1), entity("e", 1)));
+		dao.create(entity("d", 2));
+		dao.create(entity("b", 2));
+
+		List<Entity> page = dao.pageById("", 3);
+
+		assertEquals(Arrays.asList(entity("a", 1), entity("b", 2),
+				entity("c", 1)), page);
+	}
+
+	@Test
+	public void shouldNotMergeBufferedEntitiesBeforeCursor() {
+		dao.create(entity("a", 2));
+		dao.create(entity("c", 2));
+
+		List<Entity> page = dao.pageById("b", 3);
+
+		assertEquals(Arrays.asList(entity("c", 2)), page);
+	}
+
+	@Test
+	public void shouldMergeBufferedEntitiesIntoPageByCreateDate() {
+		when(delegate.pageByCreateDate(new Date(1), "y", 2)).thenReturn(
+				Arrays.asList(entity("z", 2), entity("y", 3)));
+		dao.create(entity("x", 1));
+		dao.create(entity("w", 2));
+		dao.create(entity("v", 4));
+
+		List<Entity> page = dao.pageByCreateDate(new Date(1), "y", 2);
+
+		assertEquals(Arrays.asList(entity("w", 2), entity("z", 2)), page);
+	}
+
+	@Test
+	public void shouldMergeBufferedEntitiesOfUserIntoPageByUser() {
+		when(delegate.pageByUser("user", new Date(1), "", new Date(4), 2))
+				.thenReturn(Arrays.asList(entity("z", 2)));
+		dao.create(entity("x", 3));
+		dao.create(new Entity("w", "content", new Date(2), "other"));
+		dao.create(entity("v", 4));
+
+		List<Entity> page = dao.pageByUser("user", new Date(1), "",
+				new Date(4), 2);
+
+		assertEquals(Arrays.asList(entity("z", 2), entity("x", 3)), page);
+	}
+
+	@Test
+	public void shouldFillPagesLeftShortByDeletes() {
+		dao.delete("a");
+		when(delegate.pageById("", 3)).thenReturn(
+				Arrays.asList(entity("a", 1), entity("b", 1), entity("c", 1)));
+
+		List<Entity> page = dao.pageById("", 2);
+
+		assertEquals(Arrays.asList(entity("b", 1), entity("c", 1)), page);
+	}
+
+	@Test
+	public void shouldGetManyIdsFromBufferThenDelegate() {
+		when(delegate.get(Arrays.asList("d", "b"))).thenReturn(
+				Arrays.asList(entity("d", 1)));
+		dao.create(entity("a", 1));
+		dao.create(entity("c", 1));
+
+		List<Entity> entities = dao.get(Arrays.asList("d", "c", "b", "a"));
+
+		assertEquals(Arrays.asList(entity("d", 1), entity("c", 1),
+				entity("a", 1)), entities);
+	}
+
+	@Test
+	public void shouldGetManyIdsInChunks() {
+		when(config.multigetChunkSize()).thenReturn(2);
+		makeTheEntity();
+		when(delegate.get(any(Collection.class))).thenReturn(
+				Collections.<Entity> emptyList());
+
+		dao.get(Arrays.asList("a", "b", "c", "d", "e", "a"));
+
+		verify(delegate).get(Arrays.asList("a", "b"));
+		verify(delegate).get(Arrays.asList("c", "d"));
+		verify(delegate).get(Arrays.asList("e"));
+	}
+
+	@Test
+	public void shouldGetManyIdsSkippingDeletedAndUnknown() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		when(delegate.ids()).thenReturn(iterator("a", "b"));
+		dao.loadFilter();
+		dao.delete("a");
+
+		dao.get(Arrays.asList("a", "b", "unknown"));
+
+		verify(delegate).get(Arrays.asList("b"));
+	}
+
+	@Test
+	public void shouldCacheEntitiesOfMultiGet() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+		when(delegate.get(Arrays.asList("a"))).thenReturn(
+				Arrays.asList(entity("a", 1)));
+
+		dao.get(Arrays.asList("a"));
+		Entity cached = dao.get("a");
+
+		assertEquals(entity("a", 1), cached);
+		verify(delegate, never()).get("a");
+	}
+
+	@Test
+	public void shouldStreamStoredThenBufferedEntitiesSkippingDeleted() {
+		when(delegate.stream(100)).thenReturn(
+				iterator(entity("a", 1), entity("b", 1), entity("c", 1)));
+		dao.delete("a");
+		dao.create(entity("c", 2));
+		dao.create(entity("d", 2));
+
+		List<String> ids = new ArrayList<String>();
+		ResultIterator<Entity> entities = dao.stream(100);
+		while (entities.hasNext()) {
+			ids.add(entities.next().getId());
+		}
+		entities.close();
+
+		assertEquals(Arrays.asList("b", "c", "d"), ids);
+	}
+
+	private Entity entity(String id, long createDate) {
+		return new Entity(id, "content", new Date(createDate), "user");
+	}
+
+	@Test
+	public void shouldNotLoseCreatesWhenFlushingConcurrently()
+			throws Exception {
+		final int producers = 4;
+		final int entitiesPerProducer = 5000;
+		final Set<String> written = Collections
+				.synchronizedSet(new HashSet<String>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		Mockito.doAnswer(new Answer() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				for (Object each : (Collection) invocation.getArguments()[0]) {
+					if (!written.add(((Entity) each).getId())) {
+						duplicates.incrementAndGet();
+					}
+				}
+				return null;
+			}
+		}).when(delegate).createBatch(any(Collection.class));
+
+		final CountDownLatch done = new CountDownLatch(producers);
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < entitiesPerProducer; i++) {
+						dao.create(new Entity(producer + "-" + i, "content",
+								null, "user"));
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		while (done.getCount() > 0) {
+			scheduledTask.run();
+		}
+		scheduledTask.run();
+
+		assertEquals(producers * entitiesPerProducer, written.size());
+		assertEquals(0, duplicates.get());
 	}
 
 	@Test
@@ -129,6 +556,260 @@ public class CachingEntityDaoTest {
 		assertEquals(entity, tokenRes);
 	}
 
+	@Test
+	public void shouldCacheEntitiesReadFromDelegate() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+		when(delegate.get("123")).thenReturn(entity);
+
+		dao.get("123");
+		Entity tokenRes = dao.get("123");
+
+		verify(delegate, times(1)).get("123");
+		assertEquals(entity, tokenRes);
+	}
+
+	@Test
+	public void shouldEvictReadCacheOnDelete() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+		when(delegate.get("123")).thenReturn(entity);
+		dao.get("123");
+
+		dao.delete("123");
+		scheduledTask.run();
+		dao.get("123");
+
+		verify(delegate, times(2)).get("123");
+	}
+
+	@Test
+	public void shouldNotCacheEntityReadWhileDeleted() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+		when(delegate.get("123")).thenAnswer(new Answer<Entity>() {
+			@Override
+			public Entity answer(InvocationOnMock invocation) {
+				// the delete and its flush overtake the read
+				dao.delete("123");
+				scheduledTask.run();
+				return entity;
+			}
+		}).thenReturn(null);
+
+		dao.get("123");
+		Entity tokenRes = dao.get("123");
+
+		verify(delegate, times(2)).get("123");
+		assertNull(tokenRes);
+	}
+
+	@Test
+	public void shouldNotCacheMissingEntities() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+
+		dao.get("123");
+		dao.get("123");
+
+		verify(delegate, times(2)).get("123");
+	}
+
+	@Test
+	public void shouldMeterReadCacheHitsAndMisses() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+		ArgumentCaptor<Meter> hits = ArgumentCaptor.forClass(Meter.class);
+		ArgumentCaptor<Meter> misses = ArgumentCaptor.forClass(Meter.class);
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.cache.read.hits"), hits.capture());
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.cache.read.misses"), misses.capture());
+		when(delegate.get("123")).thenReturn(entity);
+
+		dao.get("123");
+		dao.get("123");
+		dao.get("123");
+
+		assertEquals(2, hits.getValue().getCount());
+		assertEquals(1, misses.getValue().getCount());
+	}
+
+	@Test
+	public void shouldNotQueryDelegateForIdsMissingFromFilter() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		when(delegate.ids()).thenReturn(iterator("123"));
+		dao.loadFilter();
+
+		Entity tokenRes = dao.get("unknown");
+
+		assertNull(tokenRes);
+		verify(delegate, never()).get("unknown");
+	}
+
+	@Test
+	public void shouldQueryDelegateForIdsInFilter() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		when(delegate.ids()).thenReturn(iterator("123"));
+		dao.loadFilter();
+
+		dao.get("123");
+
+		verify(delegate).get("123");
+	}
+
+	@Test
+	public void shouldAddCreatedIdsToFilter() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		when(delegate.ids()).thenReturn(this.<String> iterator());
+		dao.loadFilter();
+		dao.create(entity);
+		scheduledTask.run();
+
+		dao.get("123");
+
+		verify(delegate).get("123");
+	}
+
+	@Test
+	public void shouldQueryDelegateUntilFilterLoaded() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+
+		dao.get("unknown");
+
+		verify(delegate).get("unknown");
+	}
+
+	private <T> ResultIterator<T> iterator(T... ids) {
+		final Iterator<T> values = Arrays.asList(ids).iterator();
+		return new ResultIterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return values.hasNext();
+			}
+
+			@Override
+			public T next() {
+				return values.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Test
+	public void shouldRecoverJournaledEntitiesNotWrittenBeforeRestart()
+			throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		when(config.journalEnabled()).thenReturn(true);
+		when(config.journalDir()).thenReturn(directory.getAbsolutePath());
+		when(config.journalSegmentSize()).thenReturn(4096);
+		makeTheEntity();
+		dao.create(entity);
+
+		makeTheEntity();
+		dao.recoverJournal();
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(delegate).createBatch(batch.capture());
+		Entity recovered = (Entity) batch.getValue().iterator().next();
+		assertEquals(entity.getId(), recovered.getId());
+		makeTheEntity();
+		dao.recoverJournal();
+		verify(delegate, times(1)).createBatch(any(Collection.class));
+		delete(directory);
+	}
+
+	@Test
+	public void shouldRecoverJournaledEntitiesWithTheirCreateDate()
+			throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		when(config.journalEnabled()).thenReturn(true);
+		when(config.journalDir()).thenReturn(directory.getAbsolutePath());
+		when(config.journalSegmentSize()).thenReturn(4096);
+		makeTheEntity();
+		dao.create(entity("a", 1000));
+
+		makeTheEntity();
+		dao.recoverJournal();
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(delegate).createBatch(batch.capture());
+		Entity recovered = (Entity) batch.getValue().iterator().next();
+		assertEquals(new Date(1000), recovered.getCreateDate());
+		delete(directory);
+	}
+
+	@Test
+	public void shouldNotRecoverJournaledEntitiesAlreadyWritten()
+			throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		when(config.journalEnabled()).thenReturn(true);
+		when(config.journalDir()).thenReturn(directory.getAbsolutePath());
+		when(config.journalSegmentSize()).thenReturn(4096);
+		makeTheEntity();
+		dao.create(entity);
+		scheduledTask.run();
+
+		makeTheEntity();
+		dao.recoverJournal();
+
+		verify(delegate, times(1)).createBatch(any(Collection.class));
+		delete(directory);
+	}
+
+	@Test
+	public void shouldNotRecoverJournaledEntitiesWrittenBeforeCrash()
+			throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		when(config.journalEnabled()).thenReturn(true);
+		when(config.journalDir()).thenReturn(directory.getAbsolutePath());
+		when(config.journalSegmentSize()).thenReturn(4096);
+		makeTheEntity();
+		dao.create(entity);
+		List<String> written = Arrays.asList(entity.getId());
+		when(delegate.ids(written)).thenReturn(written);
+
+		makeTheEntity();
+		dao.recoverJournal();
+
+		verify(delegate, never()).createBatch(any(Collection.class));
+		verify(delegate, never()).get(anyString());
+		delete(directory);
+	}
+
+	private void delete(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
 	@Test
 	public void shouldInvokeGetAllOnDelegateWhenCacheNotPresent() {
 		dao.get();
@@ -148,13 +829,212 @@ public class CachingEntityDaoTest {
 	}
 
 	@Test
-	public void shouldInvokeDeleteOnDelegate() {
+	public void shouldInvokeDeleteBatchOnDelegateOnFlush() {
 		dao.create(entity);
 		scheduledTask.run();
 
 		dao.delete(entity.getId());
+		verify(delegate, never()).deleteBatch(any(Collection.class));
+		scheduledTask.run();
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(delegate).deleteBatch(batch.capture());
+		assertEquals(Arrays.asList(entity.getId()),
+				batch.getValue());
+		verify(delegate, never()).delete(anyString());
+	}
+
+	@Test
+	public void shouldHideDeletedEntityUntilFlushed() {
+		when(delegate.get("123")).thenReturn(entity);
+		when(delegate.get()).thenReturn(Arrays.asList(entity));
+
+		dao.delete("123");
 
-		verify(delegate).delete(eq(entity.getId()));
+		assertNull(dao.get("123"));
+		assertEquals(0, dao.get().size());
+		verify(delegate, never()).get("123");
+	}
+
+	@Test
+	public void shouldDeleteEachIdOnceWhenDeletedTwice() {
+		dao.delete("123");
+		dao.delete("123");
+		scheduledTask.run();
+		scheduledTask.run();
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(delegate, times(1)).deleteBatch(batch.capture());
+		assertEquals(1, batch.getValue().size());
+	}
+
+	@Test
+	public void shouldDeleteIdsMissingFromFilter() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		when(delegate.ids()).thenReturn(iterator("123"));
+		dao.loadFilter();
+
+		dao.delete("unknown");
+		scheduledTask.run();
+
+		verify(delegate).deleteBatch(Arrays.asList("unknown"));
+	}
+
+	@Test
+	public void shouldDeleteManyIdsMissingFromFilter() {
+		when(config.filterExclusive()).thenReturn(true);
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		when(delegate.ids()).thenReturn(iterator("123"));
+		dao.loadFilter();
+
+		dao.delete(Arrays.asList("123", "unknown"));
+
+		verify(delegate).delete(Arrays.asList("123", "unknown"));
+	}
+
+	@Test
+	public void shouldQueryDelegateWhenNotExclusiveWriter() {
+		when(config.filterCapacity()).thenReturn(100);
+		when(config.filterFpp()).thenReturn(0.01);
+		makeTheEntity();
+		dao.loadFilter();
+
+		dao.get("unknown");
+
+		verify(delegate).get("unknown");
+		verify(delegate, never()).ids();
+	}
+
+	@Test
+	public void shouldDeleteEntityRemovedWhileBeingWritten()
+			throws Exception {
+		ReturnsCachedElementsDuringWritingFixture fixture = new ReturnsCachedElementsDuringWritingFixture();
+		dao.create(entity);
+		fixture.run();
+
+		dao.delete(entity.getId());
+		assertNull(dao.get(entity.getId()));
+		fixture.writer.join();
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(delegate).deleteBatch(batch.capture());
+		assertEquals(Arrays.asList(entity.getId()),
+				batch.getValue());
+	}
+
+	@Test
+	public void shouldRecoverJournaledDeletesNotAppliedBeforeRestart()
+			throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		when(config.journalEnabled()).thenReturn(true);
+		when(config.journalDir()).thenReturn(directory.getAbsolutePath());
+		when(config.journalSegmentSize()).thenReturn(4096);
+		makeTheEntity();
+		dao.delete("123");
+
+		makeTheEntity();
+		dao.recoverJournal();
+
+		verify(delegate).deleteBatch(Arrays.asList("123"));
+		delete(directory);
+	}
+
+	@Test
+	public void shouldNotRecoverEntitiesCreatedAndDeletedBeforeRestart()
+			throws Exception {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		when(config.journalEnabled()).thenReturn(true);
+		when(config.journalDir()).thenReturn(directory.getAbsolutePath());
+		when(config.journalSegmentSize()).thenReturn(4096);
+		makeTheEntity();
+		dao.create(entity);
+		dao.delete(entity.getId());
+
+		makeTheEntity();
+		dao.recoverJournal();
+
+		verify(delegate, never()).createBatch(any(Collection.class));
+		delete(directory);
+	}
+
+	@Test
+	public void shouldDiscardBufferedEntitiesOfBulkDeleteWithoutSql() {
+		dao.create(entity("a", 1));
+		dao.create(entity("b", 1));
+
+		int deleted = dao.delete(Arrays.asList("a", "b"));
+		scheduledTask.run();
+
+		assertEquals(2, deleted);
+		verify(delegate, never()).delete(any(Collection.class));
+		verify(delegate, never()).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldDeleteStoredEntitiesOfBulkDeleteWithOneStatement() {
+		dao.create(entity("a", 1));
+		when(delegate.delete(Arrays.asList("b", "c"))).thenReturn(1);
+
+		int deleted = dao.delete(Arrays.asList("a", "b", "c"));
+
+		assertEquals(2, deleted);
+		verify(delegate).delete(Arrays.asList("b", "c"));
+	}
+
+	@Test
+	public void shouldEvictReadCacheOnBulkDelete() {
+		when(config.cacheReadCapacity()).thenReturn(100);
+		makeTheEntity();
+		when(delegate.get("a")).thenReturn(entity("a", 1));
+		dao.get("a");
+
+		dao.delete(Arrays.asList("a"));
+		when(delegate.get("a")).thenReturn(null);
+
+		assertNull(dao.get("a"));
+	}
+
+	@Test
+	public void shouldMergeBufferedEntitiesIntoIdsCreatedBefore() {
+		when(delegate.idsCreatedBefore(new Date(10), null, "", 3))
+				.thenReturn(Arrays.asList("a", "c"));
+		dao.create(entity("b", 5));
+		dao.create(entity("d", 20));
+		dao.create(entity("e", 5));
+
+		List<String> ids = dao.idsCreatedBefore(new Date(10), null, "", 3);
+
+		assertEquals(Arrays.asList("a", "b", "c"), ids);
+	}
+
+	@Test
+	public void shouldListBufferedEntitiesAmongExpired() {
+		when(delegate.idsExpired(new Date(10), 1)).thenReturn(
+				Arrays.asList("a", "b"));
+		dao.create(entity("x", 5));
+		dao.create(entity("y", 20));
+
+		List<String> ids = dao.idsExpired(new Date(10), 2);
+
+		assertEquals(Arrays.asList("x", "a"), ids);
+	}
+
+	@Test
+	public void shouldFindOldestAmongBufferedEntities() {
+		when(delegate.oldestCreateDate()).thenReturn(new Date(10));
+		dao.create(entity("x", 5));
+
+		assertEquals(new Date(5), dao.oldestCreateDate());
 	}
 
 	@Test
@@ -201,6 +1081,132 @@ public class CachingEntityDaoTest {
 		assertEquals(0, gauge.getValue().intValue());
 	}
 
+	@Test
+	public void shouldRejectCreateWhenBufferFull() {
+		when(config.cacheBufferMax()).thenReturn(1);
+		makeTheEntity();
+		dao.create(entity);
+
+		try {
+			dao.create(entity);
+			fail("Expected the buffer to be full");
+		} catch (BufferFullException expected) {
+			assertEquals(1, expected.getRetryAfterSeconds());
+		}
+	}
+
+	@Test
+	public void shouldAcceptCreateAgainAfterFlush() {
+		when(config.cacheBufferMax()).thenReturn(1);
+		makeTheEntity();
+		dao.create(entity);
+
+		scheduledTask.run();
+		dao.create(entity);
+
+		verify(delegate, times(1)).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldAcceptCreateAgainOnceBufferedEntityDeleted() {
+		when(config.cacheBufferMax()).thenReturn(1);
+		makeTheEntity();
+		dao.create(entity("a", 1));
+
+		dao.delete("a");
+		dao.create(entity("b", 1));
+
+		assertNotNull(dao.get("b"));
+	}
+
+	@Test
+	public void shouldNeverBufferMoreThanMaxConcurrently() throws Exception {
+		final int max = 100;
+		when(config.cacheBufferMax()).thenReturn(max);
+		makeTheEntity();
+		final AtomicInteger accepted = new AtomicInteger();
+		Thread[] producers = new Thread[4];
+		for (int p = 0; p < producers.length; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < max; i++) {
+						try {
+							dao.create(entity(producer + "-" + i, 1));
+							accepted.incrementAndGet();
+						} catch (BufferFullException expected) {
+						}
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		assertEquals(max, accepted.get());
+	}
+
+	@Test
+	public void shouldMarkRejectionMeterWhenBufferFull() {
+		when(config.cacheBufferMax()).thenReturn(1);
+		makeTheEntity();
+		ArgumentCaptor<Meter> metric = ArgumentCaptor.forClass(Meter.class);
+		verify(monitor.metrics(), atLeastOnce()).register(
+				eq("entity.cache.rejected"), metric.capture());
+
+		dao.create(entity);
+		try {
+			dao.create(entity);
+		} catch (BufferFullException expected) {
+		}
+
+		assertEquals(1, metric.getValue().getCount());
+	}
+
+	@Test
+	public void shouldTriggerFlushOnHighWaterMark() {
+		when(config.cacheBufferFlush()).thenReturn(2);
+		makeTheEntity();
+
+		dao.create(entity);
+		verify(scheduler, never()).execute(any(Runnable.class));
+
+		dao.create(entity);
+		verify(scheduler).execute(scheduledTask);
+	}
+
+	@Test
+	public void shouldTriggerOnlyOneFlushUntilFlushed() {
+		when(config.cacheBufferFlush()).thenReturn(1);
+		makeTheEntity();
+
+		dao.create(entity);
+		dao.create(entity);
+		verify(scheduler, times(1)).execute(any(Runnable.class));
+
+		scheduledTask.run();
+		dao.create(entity);
+		verify(scheduler, times(2)).execute(any(Runnable.class));
+	}
+
+	@Test
+	public void shouldGaugeHighWaterAcrossFlushes() {
+		ArgumentCaptor<Gauge> metric = ArgumentCaptor.forClass(Gauge.class);
+		verify(monitor.metrics()).register(eq("entity.cache.highwater"),
+				metric.capture());
+
+		dao.create(entity);
+		dao.create(entity);
+		scheduledTask.run();
+		dao.create(entity);
+
+		Gauge<Integer> gauge = metric.getValue();
+		assertEquals(2, gauge.getValue().intValue());
+	}
+
 	@Test
 	public void shouldReturnCachedElementsDuringWriting() throws Exception {
 
@@ -1,34 +1,59 @@
 package com.workshare.micro.api.entity;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.validation.Validation;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.skife.jdbi.v2.ResultIterator;
 
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.workshare.micro.api.JacksonJsonProvider;
 import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.model.EntityBatch;
+import com.workshare.micro.api.entity.persistence.EntityVersion;
+import com.workshare.micro.api.entity.persistence.BufferFullException;
+import com.workshare.micro.api.entity.persistence.PartialWriteException;
 import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
 import com.workshare.micro.utils.UUIDGenerator;
 
-@SuppressWarnings("unchecked")
+@SuppressWarnings({ "unchecked", "rawtypes" })
 public class EntityApiTest {
 
 	private EntityApi api;
@@ -38,6 +63,10 @@ public class EntityApiTest {
 	private UUIDGenerator uuids;
 	@Mock
 	private ScheduledExecutorService expirer;
+	@Mock
+	private MicroConfig config;
+	private Monitor monitor;
+	private EntityVersion version;
 
 	private String entityRequest;
 
@@ -60,7 +89,13 @@ public class EntityApiTest {
 
 		when(uuids.generateString()).thenReturn(TOKEN_ID);
 
-		api = new EntityApi(dao, uuids, expirer);
+		monitor = mock(Monitor.class);
+		when(monitor.metrics()).thenReturn(mock(MetricRegistry.class));
+		version = new EntityVersion();
+
+		api = new EntityApi(dao, version, uuids, config, Validation
+				.buildDefaultValidatorFactory().getValidator(), monitor,
+				expirer);
 
 		entityRequest = TOKEN_CONTENT;
 
@@ -75,11 +110,187 @@ public class EntityApiTest {
 		verify(dao).create(any(Entity.class));
 	}
 
+	@Test
+	public void shouldStampCreateDateInWholeSeconds() throws Exception {
+		api.create(entityRequest);
+
+		verify(dao).create(tokenCaptured.capture());
+		Date createDate = tokenCaptured.getValue().getCreateDate();
+		assertEquals(0, createDate.getTime() % 1000);
+	}
+
+	@Test
+	public void shouldCreateEachValidItemOfJsonArray() throws Exception {
+		Response res = api.createBulk(body("[{\"content\":\"one\"},"
+				+ "{\"content\":\"\"}, 3, {\"content\":\"two\"}]"));
+
+		ArgumentCaptor<Collection> batch = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(dao).createBatch(batch.capture());
+		assertEquals(2, batch.getValue().size());
+
+		JsonNode result = result(res);
+		assertEquals(200, res.getStatus());
+		assertEquals(2, result.get("created").asInt());
+		assertEquals(2, result.get("failed").asInt());
+		assertEquals(TOKEN_ID, result.get("items").get(0).get("id").asText());
+		assertEquals("contentEmpty", result.get("items").get(1).get("errors")
+				.get(0).asText());
+		assertEquals("itemNotAnObject", result.get("items").get(2)
+				.get("errors").get(0).asText());
+		assertEquals(TOKEN_ID, result.get("items").get(3).get("id").asText());
+	}
+
+	@Test
+	public void shouldCreateEachItemOfNewlineDelimitedJson() throws Exception {
+		Response res = api.createBulk(body("{\"content\":\"one\"}\n"
+				+ "{\"content\":\"two\"}\n"));
+
+		assertEquals(2, result(res).get("created").asInt());
+	}
+
+	@Test
+	public void shouldCreateBulkItemsInChunks() throws Exception {
+		when(config.bulkChunkSize()).thenReturn(2);
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			body.append("{\"content\":\"item").append(i).append("\"}\n");
+		}
+
+		api.createBulk(body(body.toString()));
+
+		verify(dao, times(3)).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldReportMalformedBulkBodyAfterCreatingPreviousItems()
+			throws Exception {
+		Response res = api.createBulk(body("[{\"content\":\"one\"}, {"));
+
+		assertEquals(400, res.getStatus());
+		JsonNode result = result(res);
+		assertEquals(1, result.get("created").asInt());
+		assertTrue(result.get("error").asText().startsWith(
+				"Malformed body after item 1"));
+		verify(dao).createBatch(any(Collection.class));
+	}
+
+	@Test
+	public void shouldReportItemsOfFailedBulkBatch() throws Exception {
+		doThrow(new RuntimeException("boom")).when(dao).createBatch(
+				any(Collection.class));
+
+		Response res = api.createBulk(body("[{\"content\":\"one\"}]"));
+
+		JsonNode result = result(res);
+		assertEquals(0, result.get("created").asInt());
+		assertEquals("storeFailed", result.get("items").get(0).get("errors")
+				.get(0).asText());
+	}
+
+	@Test
+	public void shouldReportItemsStoredBeforeBulkBatchFailed()
+			throws Exception {
+		when(uuids.generateString()).thenReturn("a", "b");
+		doThrow(
+				new PartialWriteException(Arrays.asList(new Entity("a",
+						"one", null, null)), new RuntimeException("boom")))
+				.when(dao).createBatch(any(Collection.class));
+
+		Response res = api.createBulk(body("[{\"content\":\"one\"}, "
+				+ "{\"content\":\"two\"}]"));
+
+		JsonNode result = result(res);
+		assertEquals(1, result.get("created").asInt());
+		assertEquals("a", result.get("items").get(0).get("id").asText());
+		assertEquals("storeFailed", result.get("items").get(1).get("errors")
+				.get(0).asText());
+	}
+
+	@Test
+	public void shouldNotScheduleExpiryWithoutRetention() {
+		verifyZeroInteractions(expirer);
+	}
+
+	@Test
+	public void shouldExpireEntitiesOnSchedule() {
+		when(config.expiryRetention()).thenReturn(1000L);
+		when(config.expiryChunkSize()).thenReturn(10);
+		api = new EntityApi(dao, version, uuids, config, Validation
+				.buildDefaultValidatorFactory().getValidator(), monitor,
+				expirer);
+		when(dao.idsExpired(any(Date.class), eq(10))).thenReturn(
+				Arrays.asList("a"));
+
+		captureExpirer().run();
+
+		verify(dao).delete(Arrays.asList("a"));
+	}
+
+	@Test
+	public void shouldKeepExpiringAfterFailure() {
+		when(config.expiryRetention()).thenReturn(1000L);
+		api = new EntityApi(dao, version, uuids, config, Validation
+				.buildDefaultValidatorFactory().getValidator(), monitor,
+				expirer);
+		when(dao.idsExpired(any(Date.class), anyInt())).thenThrow(
+				new RuntimeException("boom"));
+
+		captureExpirer().run();
+	}
+
+	@Test
+	public void shouldBulkDeleteListedIdsInChunks() throws Exception {
+		when(config.bulkChunkSize()).thenReturn(2);
+		when(dao.delete(any(Collection.class))).thenReturn(2, 1);
+
+		Response res = api.deleteBulk(body("{\"ids\":[\"a\",\"b\",\"c\"]}"));
+
+		assertEquals(200, res.getStatus());
+		assertEquals(3, ((EntityBulkDelete) res.getEntity()).getDeleted());
+		verify(dao).delete(Arrays.asList("a", "b"));
+		verify(dao).delete(Arrays.asList("c"));
+	}
+
+	@Test
+	public void shouldBulkDeleteEntitiesMatchingFilterInChunks()
+			throws Exception {
+		when(config.bulkChunkSize()).thenReturn(2);
+		when(dao.idsCreatedBefore(new Date(1000), "user", "", 2)).thenReturn(
+				Arrays.asList("a", "b"));
+		when(dao.idsCreatedBefore(new Date(1000), "user", "b", 2))
+				.thenReturn(Arrays.asList("c"));
+		when(dao.delete(any(Collection.class))).thenReturn(2, 1);
+
+		Response res = api.deleteBulk(body("{\"filter\":{\"createdBefore\":1000,\"createUser\":\"user\"}}"));
+
+		assertEquals(200, res.getStatus());
+		assertEquals(3, ((EntityBulkDelete) res.getEntity()).getDeleted());
+		verify(dao).delete(Arrays.asList("c"));
+	}
+
+	@Test
+	public void shouldRejectBulkDeleteWithoutIdsOrFilter() throws Exception {
+		assertEquals(400, api.deleteBulk(body("{}")).getStatus());
+		assertEquals(400, api.deleteBulk(body("{\"filter\":{}}"))
+				.getStatus());
+		assertEquals(400, api.deleteBulk(body("[\"a\"]")).getStatus());
+		verify(dao, never()).delete(any(Collection.class));
+	}
+
+	private InputStream body(String text) throws Exception {
+		return new ByteArrayInputStream(text.getBytes("UTF-8"));
+	}
+
+	private JsonNode result(Response res) throws Exception {
+		return JacksonJsonProvider.mapper().readTree(write(res));
+	}
+
 	@Test
 	public void shouldGetEmptyCollectionIfEmpty() throws Exception {
-		when(dao.get()).thenReturn(new ArrayList<Entity>());
+		when(dao.pageById("", 101)).thenReturn(new ArrayList<Entity>());
 
-		Response res = api.get();
+		Response res = api.get(null, null, null, null, null);
 
 		assertEquals(200, res.getStatus());
 		assertTrue(((List<Entity>) res.getEntity()).isEmpty());
@@ -96,12 +307,224 @@ public class EntityApiTest {
 		Entity expected = new Entity(TOKEN_ID, "content", new Date(),
 				"createUser");
 		List<Entity> list = Arrays.asList(expected, expected);
-		when(dao.get()).thenReturn(list);
+		when(dao.pageById("", 101)).thenReturn(list);
 
-		Response res = api.get();
+		Response res = api.get(null, null, null, null, null);
 
 		assertEquals(200, res.getStatus());
 		assertEquals(2, ((List<Entity>) res.getEntity()).size());
+		assertNull(res.getMetadata().getFirst("Link"));
+	}
+
+	@Test
+	public void shouldAnswerNotModifiedWhileCollectionUnchanged()
+			throws Exception {
+		when(dao.pageById("", 101)).thenReturn(Arrays.asList(entity("a")));
+		Response res = api.get(null, null, null, null, null);
+		String tag = "\"" + version.get() + "\"";
+
+		assertEquals(new EntityTag(version.get()), res.getMetadata()
+				.getFirst("ETag"));
+		assertEquals("no-cache", res.getMetadata().getFirst("Cache-Control"));
+
+		res = api.get(null, null, null, null, tag);
+
+		assertEquals(304, res.getStatus());
+		assertNull(res.getEntity());
+		verify(dao, times(1)).pageById("", 101);
+		assertEquals(304, api.get(null, null, null, "json", tag).getStatus());
+
+		version.changed();
+
+		assertEquals(200, api.get(null, null, null, null, tag).getStatus());
+	}
+
+	@Test
+	public void shouldValidateBeforeAnsweringNotModified() throws Exception {
+		String tag = "\"" + version.get() + "\"";
+
+		assertEquals(400, api.get(0, null, null, null, tag).getStatus());
+		assertEquals(400, api.get(null, null, null, "xml", tag).getStatus());
+	}
+
+	@Test
+	public void shouldLinkToNextPageWhenMoreEntities() throws Exception {
+		when(dao.pageById("", 3)).thenReturn(
+				Arrays.asList(entity("a"), entity("b"), entity("c")));
+
+		Response res = api.get(2, null, null, null, null);
+
+		assertEquals(2, ((List<Entity>) res.getEntity()).size());
+		String link = res.getMetadata().getFirst("Link").toString();
+		assertTrue(link.endsWith("&limit=2>; rel=\"next\""));
+		String cursor = link.substring("<?cursor=".length(),
+				link.indexOf('&'));
+		assertEquals("b", EntityCursor.decode(cursor).getId());
+	}
+
+	@Test
+	public void shouldGetPageAfterCursor() throws Exception {
+		String cursor = EntityCursor.first(null).after(entity("b")).encode();
+
+		api.get(2, cursor, null, null, null);
+
+		verify(dao).pageById("b", 3);
+	}
+
+	@Test
+	public void shouldGetPagesByCreateDate() throws Exception {
+		Date date = new Date(1000000000000L);
+		when(dao.pageByCreateDate(new Date(0), "", 2)).thenReturn(
+				Arrays.asList(new Entity("b", "content", date, "user"),
+						entity("a")));
+		Response res = api.get(1, null, "created", null, null);
+		String link = res.getMetadata().getFirst("Link").toString();
+		String cursor = link.substring("<?cursor=".length(),
+				link.indexOf('&'));
+
+		api.get(1, cursor, null, null, null);
+
+		verify(dao).pageByCreateDate(date, "b", 2);
+	}
+
+	@Test
+	public void shouldQueryPagesOfUserWithinRange() throws Exception {
+		Date date = new Date(1500);
+		when(dao.pageByUser("a user", new Date(1000), "", new Date(2000), 2))
+				.thenReturn(
+						Arrays.asList(new Entity("b", "content", date,
+								"a user"), entity("a")));
+		Response res = api.query("a user", 1000L, 2000L, 1, null);
+		String link = res.getMetadata().getFirst("Link").toString();
+		String cursor = link.substring("<?cursor=".length(),
+				link.indexOf('&'));
+
+		api.query("a user", null, 2000L, 1, cursor);
+
+		assertTrue(link.contains("&createUser=a+user&to=2000>"));
+		verify(dao).pageByUser("a user", date, "b", new Date(2000), 2);
+	}
+
+	@Test
+	public void shouldQueryAllUsersWhenNoneSpecified() throws Exception {
+		when(dao.pageByCreateDate(any(Date.class), anyString(),
+				any(Date.class), eq(101))).thenReturn(
+				new ArrayList<Entity>());
+
+		Response res = api.query(null, null, null, null, null);
+
+		assertEquals(200, res.getStatus());
+		verify(dao).pageByCreateDate(eq(new Date(0)), eq(""),
+				any(Date.class), eq(101));
+	}
+
+	@Test
+	public void shouldRejectQueryWithCursorById() throws Exception {
+		String cursor = EntityCursor.first(null).after(entity("b")).encode();
+
+		assertEquals(400, api.query(null, null, null, null, cursor)
+				.getStatus());
+	}
+
+	@Test
+	public void shouldCapPageSize() throws Exception {
+		api.get(5000, null, null, null, null);
+
+		verify(dao).pageById("", 1001);
+	}
+
+	@Test
+	public void shouldRejectInvalidPaging() throws Exception {
+		assertEquals(400, api.get(0, null, null, null, null).getStatus());
+		assertEquals(400, api.get(null, null, "size", null, null).getStatus());
+		assertEquals(400, api.get(null, "garbage", null, null, null).getStatus());
+	}
+
+	@Test
+	public void shouldExportEntitiesAsJsonArray() throws Exception {
+		when(config.exportFetchSize()).thenReturn(500);
+		when(dao.stream(500)).thenReturn(
+				iterator(entity("a"), entity("b")));
+
+		Response res = api.get(null, null, null, "json", null);
+
+		String json = write(res);
+		assertTrue(json.startsWith("[{\"id\":\"a\""));
+		assertTrue(json.contains("},{\"id\":\"b\""));
+		assertTrue(json.endsWith("}]"));
+	}
+
+	@Test
+	public void shouldStreamExportRowByRowOnMySql() throws Exception {
+		when(config.jdbcUrl()).thenReturn("jdbc:mysql://localhost/entities");
+		when(config.exportFetchSize()).thenReturn(500);
+		when(dao.stream(Integer.MIN_VALUE)).thenReturn(iterator(entity("a")));
+
+		Response res = api.get(null, null, null, "json", null);
+
+		assertTrue(write(res).startsWith("[{\"id\":\"a\""));
+	}
+
+	@Test
+	public void shouldExportEntitiesAsNewlineDelimitedJson() throws Exception {
+		when(dao.stream(0)).thenReturn(iterator(entity("a"), entity("b")));
+
+		Response res = api.get(null, null, null, "ndjson", null);
+
+		assertEquals(EntityExport.NDJSON_TYPE,
+				res.getMetadata().getFirst("Content-Type").toString());
+		String[] lines = write(res).split("\n", -1);
+		assertEquals(3, lines.length);
+		assertTrue(lines[0].startsWith("{\"id\":\"a\""));
+		assertTrue(lines[1].startsWith("{\"id\":\"b\""));
+		assertEquals("", lines[2]);
+	}
+
+	@Test
+	public void shouldExportEmptyCollection() throws Exception {
+		when(dao.stream(0)).thenReturn(iterator());
+
+		assertEquals("[]", write(api.get(null, null, null, "json", null)));
+		assertEquals("", write(api.get(null, null, null, "ndjson", null)));
+	}
+
+	@Test
+	public void shouldRejectUnknownExportFormat() throws Exception {
+		assertEquals(400, api.get(null, null, null, "xml", null).getStatus());
+	}
+
+	private String write(Response res) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((StreamingOutput) res.getEntity()).write(out);
+		return out.toString("UTF-8");
+	}
+
+	private ResultIterator<Entity> iterator(Entity... entities) {
+		final Iterator<Entity> values = Arrays.asList(entities).iterator();
+		return new ResultIterator<Entity>() {
+			@Override
+			public boolean hasNext() {
+				return values.hasNext();
+			}
+
+			@Override
+			public Entity next() {
+				return values.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private Entity entity(String id) {
+		return new Entity(id, "content", new Date(), "createUser");
 	}
 
 	@Test
@@ -116,9 +539,20 @@ public class EntityApiTest {
 		assertEquals(expectedLocation, currentLocation);
 	}
 
+	@Test
+	public void shouldReturn503WhenDaoBufferIsFull() throws Exception {
+		doThrow(new BufferFullException(10, 3)).when(dao).create(
+				any(Entity.class));
+
+		Response res = api.create(entityRequest);
+
+		assertEquals(503, res.getStatus());
+		assertEquals("3", res.getMetadata().getFirst("Retry-After").toString());
+	}
+
 	@Test
 	public void shouldInvokeDaoOnGet() throws Exception {
-		api.get(TOKEN_ID);
+		api.get(TOKEN_ID, null);
 
 		verify(dao).get(anyString());
 	}
@@ -129,23 +563,104 @@ public class EntityApiTest {
 				"createUser");
 		when(dao.get(TOKEN_ID)).thenReturn(expected);
 
-		Response res = api.get(TOKEN_ID);
+		Response res = api.get(TOKEN_ID, null);
 
 		assertEquals(expected, res.getEntity());
 		assertEquals(200, res.getStatus());
 	}
 
+	@Test
+	public void shouldTagEntityAsImmutable() throws Exception {
+		Entity expected = new Entity(TOKEN_ID, "content", new Date(),
+				"createUser");
+		when(dao.get(TOKEN_ID)).thenReturn(expected);
+
+		Response res = api.get(TOKEN_ID, null);
+
+		assertEquals(EntityTags.of(expected), res.getMetadata()
+				.getFirst("ETag"));
+		assertEquals("max-age=31536000, immutable", res.getMetadata()
+				.getFirst("Cache-Control"));
+	}
+
+	@Test
+	public void shouldCacheEntityUntilItExpiresAtMost() throws Exception {
+		when(config.expiryRetention()).thenReturn(60000L);
+		api = new EntityApi(dao, version, uuids, config, Validation
+				.buildDefaultValidatorFactory().getValidator(), monitor,
+				expirer);
+		Entity expected = new Entity(TOKEN_ID, "content", new Date(System
+				.currentTimeMillis() - 30000), "createUser");
+		when(dao.get(TOKEN_ID)).thenReturn(expected);
+
+		String cacheControl = api.get(TOKEN_ID, null).getMetadata()
+				.getFirst("Cache-Control").toString();
+
+		assertTrue(cacheControl.matches("max-age=(29|30)"));
+		when(dao.get(TOKEN_ID)).thenReturn(
+				new Entity(TOKEN_ID, "content", new Date(0), "createUser"));
+		assertEquals("max-age=0", api.get(TOKEN_ID, null).getMetadata()
+				.getFirst("Cache-Control"));
+	}
+
+	@Test
+	public void shouldAnswerNotModifiedWhenTagMatches() throws Exception {
+		Entity expected = new Entity(TOKEN_ID, "content", new Date(),
+				"createUser");
+		when(dao.get(TOKEN_ID)).thenReturn(expected);
+		String tag = "\"" + EntityTags.of(expected).getValue() + "\"";
+
+		Response res = api.get(TOKEN_ID, "\"other\", " + tag);
+
+		assertEquals(304, res.getStatus());
+		assertEquals(null, res.getEntity());
+		assertEquals(EntityTags.of(expected), res.getMetadata()
+				.getFirst("ETag"));
+		assertEquals(200, api.get(TOKEN_ID, "\"other\"").getStatus());
+	}
+
+	@Test
+	public void shouldReturn404WhenTaggedEntityGone() throws Exception {
+		when(dao.get(TOKEN_ID)).thenReturn(null);
+
+		assertEquals(404, api.get(TOKEN_ID, "*").getStatus());
+	}
+
 	@Test
 	public void shouldReturn404WhenEntityFound() throws Exception {
 
 		when(dao.get(TOKEN_ID)).thenReturn(null);
 
-		Response res = api.get(TOKEN_ID);
+		Response res = api.get(TOKEN_ID, null);
 
 		assertEquals(null, res.getEntity());
 		assertEquals(404, res.getStatus());
 	}
 
+	@Test
+	public void shouldGetBatchReportingMissingIds() throws Exception {
+		Entity found = entity("a");
+		when(dao.get(any(Collection.class))).thenReturn(Arrays.asList(found));
+
+		Response res = api.getBatch(Arrays.asList("a", "b", "a"));
+
+		EntityBatch batch = (EntityBatch) res.getEntity();
+		assertEquals(200, res.getStatus());
+		assertEquals(Arrays.asList(found), batch.getEntities());
+		assertEquals(Arrays.asList("b"), batch.getMissing());
+	}
+
+	@Test
+	public void shouldRejectEmptyOrOversizedBatch() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		assertEquals(400, api.getBatch(ids).getStatus());
+
+		for (int i = 0; i <= 1000; i++) {
+			ids.add("id" + i);
+		}
+		assertEquals(400, api.getBatch(ids).getStatus());
+	}
+
 	@Test
 	public void shouldInvokeDaoOnDelete() throws Exception {
 
@@ -0,0 +1,126 @@
+package com.workshare.micro.api.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+
+@SuppressWarnings("unchecked")
+public class EntityExpirerTest {
+
+	private EntityDao dao;
+	private Monitor monitor;
+	private MicroConfig config;
+	private Meter expired;
+
+	@Before
+	public void setup() {
+		dao = mock(EntityDao.class);
+		monitor = mock(Monitor.class);
+		MetricRegistry registry = mock(MetricRegistry.class);
+		when(monitor.metrics()).thenReturn(registry);
+		expired = new Meter();
+		when(registry.register(eq("entity.expiry.expired"), any(Meter.class)))
+				.thenReturn(expired);
+		config = mock(MicroConfig.class);
+		when(config.expiryRetention()).thenReturn(60000L);
+		when(config.expiryChunkSize()).thenReturn(2);
+	}
+
+	@Test
+	public void shouldDoNothingWithoutRetention() {
+		when(config.expiryRetention()).thenReturn(0L);
+		EntityExpirer expirer = new EntityExpirer(dao, monitor, config);
+
+		assertEquals(0, expirer.expire());
+		verifyZeroInteractions(dao);
+	}
+
+	@Test
+	public void shouldDeleteInChunksUntilNoneLeft() {
+		when(dao.idsExpired(any(Date.class), eq(2))).thenReturn(
+				Arrays.asList("a", "b"), Arrays.asList("c"));
+		when(dao.delete(any(Collection.class))).thenReturn(2, 1);
+		EntityExpirer expirer = new EntityExpirer(dao, monitor, config);
+
+		int count = expirer.expire();
+
+		assertEquals(3, count);
+		assertEquals(3, expired.getCount());
+		verify(dao).delete(Arrays.asList("a", "b"));
+		verify(dao).delete(Arrays.asList("c"));
+	}
+
+	@Test
+	public void shouldDeleteEntitiesCreatedBeforeRetention() {
+		when(dao.idsExpired(any(Date.class), eq(2))).thenReturn(
+				Collections.<String> emptyList());
+		EntityExpirer expirer = new EntityExpirer(dao, monitor, config);
+		long now = System.currentTimeMillis();
+
+		expirer.expire();
+
+		ArgumentCaptor<Date> before = ArgumentCaptor.forClass(Date.class);
+		verify(dao).idsExpired(before.capture(), eq(2));
+		assertTrue(Math.abs(now - 60000 - before.getValue().getTime()) < 1000);
+		verify(dao, never()).delete(any(Collection.class));
+	}
+
+	@Test
+	public void shouldStopWhenChunkIsShort() {
+		when(dao.idsExpired(any(Date.class), eq(2))).thenReturn(
+				Arrays.asList("a"));
+		when(dao.delete(any(Collection.class))).thenReturn(1);
+		EntityExpirer expirer = new EntityExpirer(dao, monitor, config);
+
+		expirer.expire();
+
+		verify(dao, times(1)).idsExpired(any(Date.class), eq(2));
+	}
+
+	@Test
+	public void shouldMeasureLagOfOldestRemainingEntity() {
+		when(dao.idsExpired(any(Date.class), eq(2))).thenReturn(
+				Collections.<String> emptyList());
+		when(dao.oldestCreateDate()).thenReturn(
+				new Date(System.currentTimeMillis() - 70000));
+		EntityExpirer expirer = new EntityExpirer(dao, monitor, config);
+
+		expirer.expire();
+
+		assertTrue(expirer.getLag() >= 10000 && expirer.getLag() < 11000);
+	}
+
+	@Test
+	public void shouldHaveNoLagWhenUpToDate() {
+		when(dao.idsExpired(any(Date.class), eq(2))).thenReturn(
+				Collections.<String> emptyList());
+		when(dao.oldestCreateDate()).thenReturn(new Date());
+		EntityExpirer expirer = new EntityExpirer(dao, monitor, config);
+
+		expirer.expire();
+
+		assertEquals(0, expirer.getLag());
+	}
+}
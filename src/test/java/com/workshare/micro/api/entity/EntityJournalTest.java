@@ -0,0 +1,203 @@
+package com.workshare.micro.api.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.EntityJournal;
+
+public class EntityJournalTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	private File directory;
+	private Entity entity;
+	private Entity other;
+
+	@Before
+	public void setup() throws Exception {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+
+		entity = new Entity("123", "content", null, "user");
+		other = new Entity("456", "other content", null, "user");
+	}
+
+	@After
+	public void teardown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void shouldRecoverAppendedEntitiesOnReopen() throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(entity);
+		journal.append(other);
+
+		List<Entity> recovered = reopen().recovered();
+
+		assertEquals(Arrays.asList(entity, other), recovered);
+		assertEquals("other content", recovered.get(1).getContent());
+		assertEquals("user", recovered.get(1).getCreateUser());
+	}
+
+	@Test
+	public void shouldRecoverTheCreateDateOfAppendedEntities()
+			throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(new Entity("789", "content", new Date(1234567L),
+				"user"));
+		journal.append(entity);
+
+		List<Entity> recovered = reopen().recovered();
+
+		assertEquals(new Date(1234567L), recovered.get(0).getCreateDate());
+		assertNull(recovered.get(1).getCreateDate());
+	}
+
+	@Test
+	public void shouldNotRecoverReleasedEntities() throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(entity);
+		journal.released(Arrays.asList(entity));
+		journal.checkpoint();
+		journal.append(other);
+
+		List<Entity> recovered = reopen().recovered();
+
+		assertEquals(Arrays.asList(other), recovered);
+	}
+
+	@Test
+	public void shouldReuseTheSegmentOnceAllEntitiesAreReleased()
+			throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(new Entity("long", "some long released content", null,
+				"user"));
+		journal.released("long");
+		String[] files = directory.list();
+		journal.checkpoint();
+		journal.append(entity);
+
+		assertEquals(Arrays.asList(files), Arrays.asList(directory.list()));
+		assertEquals(Arrays.asList(entity), reopen().recovered());
+	}
+
+	@Test
+	public void shouldRecoverEntitiesAcrossSegments() throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		for (int i = 0; i < 500; i++) {
+			journal.append(new Entity("id" + i, "content", null, "user"));
+		}
+
+		List<Entity> recovered = reopen().recovered();
+
+		assertEquals(500, recovered.size());
+		assertTrue(directory.listFiles().length > 2);
+	}
+
+	@Test
+	public void shouldDeleteSegmentsOnceAllEntitiesAreReleased()
+			throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		for (int i = 0; i < 500; i++) {
+			Entity each = new Entity("id" + i, "content", null, "user");
+			journal.append(each);
+			journal.released(each.getId());
+		}
+		journal.checkpoint();
+
+		assertEquals(1, directory.listFiles().length);
+		assertTrue(reopen().recovered().isEmpty());
+	}
+
+	@Test
+	public void shouldNotRecoverEntitiesDeletedAfterCreation()
+			throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(entity);
+		journal.append(other);
+		journal.appendDelete(entity.getId());
+
+		EntityJournal reopened = reopen();
+
+		assertEquals(Arrays.asList(other), reopened.recovered());
+		assertEquals(Arrays.asList(entity.getId()),
+				reopened.recoveredDeletes());
+	}
+
+	@Test
+	public void shouldKeepSegmentsWhileDeletesArePending() throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		for (int i = 0; i < 500; i++) {
+			Entity each = new Entity("id" + i, "content", null, "user");
+			journal.append(each);
+			journal.released(each.getId());
+		}
+		journal.appendDelete("id0");
+		journal.checkpoint();
+
+		assertEquals(Arrays.asList("id0"), reopen().recoveredDeletes());
+
+		journal.releasedDeletes(Arrays.asList("id0"));
+		journal.checkpoint();
+		assertTrue(reopen().recoveredDeletes().isEmpty());
+	}
+
+	@Test
+	public void shouldStopRecoveringAtTornRecord() throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(entity);
+		journal.append(other);
+		corruptLastByteOf(other);
+
+		List<Entity> recovered = reopen().recovered();
+
+		assertEquals(Arrays.asList(entity), recovered);
+	}
+
+	@Test
+	public void shouldDiscardRecoveredSegments() throws Exception {
+		EntityJournal journal = new EntityJournal(directory, SEGMENT_SIZE);
+		journal.append(entity);
+
+		reopen().discardRecovered();
+
+		assertTrue(reopen().recovered().isEmpty());
+	}
+
+	private EntityJournal reopen() throws Exception {
+		return new EntityJournal(directory, SEGMENT_SIZE);
+	}
+
+	private void corruptLastByteOf(Entity written) throws Exception {
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			byte[] data = new byte[SEGMENT_SIZE];
+			raf.readFully(data);
+			int end = data.length;
+			while (data[end - 1] == 0) {
+				end--;
+			}
+			raf.seek(end - 1);
+			raf.write(data[end - 1] ^ 0xff);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.workshare.micro.api.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.junit.Test;
+
+import com.workshare.micro.api.entity.model.Entity;
+
+public class EntityTagsTest {
+
+	private final Entity entity = new Entity("id", "content", new Date(1000),
+			"user");
+
+	@Test
+	public void shouldTagSameFieldsAlike() {
+		EntityTag tag = EntityTags.of(entity);
+
+		assertFalse(tag.isWeak());
+		assertEquals(tag, EntityTags.of(new Entity("id", "content", new Date(
+				1000), "user")));
+	}
+
+	@Test
+	public void shouldTagDifferentFieldsApart() {
+		EntityTag tag = EntityTags.of(entity);
+
+		assertFalse(tag.equals(EntityTags.of(new Entity("id", "content",
+				new Date(1001), "user"))));
+		assertFalse(tag.equals(EntityTags.of(new Entity("id", "conten",
+				new Date(1000), "tuser"))));
+	}
+
+	@Test
+	public void shouldMatchListedWeakOrAnyTag() {
+		EntityTag tag = EntityTags.of(entity);
+		String quoted = "\"" + tag.getValue() + "\"";
+
+		assertTrue(EntityTags.matches(quoted, tag));
+		assertTrue(EntityTags.matches("\"a\", W/" + quoted, tag));
+		assertTrue(EntityTags.matches("*", tag));
+		assertFalse(EntityTags.matches("\"a\"", tag));
+		assertFalse(EntityTags.matches(tag.getValue(), tag));
+		assertFalse(EntityTags.matches(null, tag));
+	}
+}
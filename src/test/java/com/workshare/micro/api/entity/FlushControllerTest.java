@@ -0,0 +1,107 @@
+package com.workshare.micro.api.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.workshare.micro.api.entity.persistence.FlushController;
+
+public class FlushControllerTest {
+
+	private FlushController controller;
+
+	@Before
+	public void setup() {
+		controller = new FlushController(50, 1000, 100, 1000, 100, 2);
+	}
+
+	@Test
+	public void shouldStartAtMinimumIntervalAndMaximumBatch() {
+		assertEquals(50, controller.interval());
+		assertEquals(1000, controller.batchSize());
+	}
+
+	@Test
+	public void shouldFlushAtLightLoadOnceMinimumIntervalElapsed() {
+		controller.isDue(1000, 1);
+		controller.flushed(1000, millis(1));
+
+		assertFalse(controller.isDue(1010, 1));
+		assertTrue(controller.isDue(1050, 1));
+	}
+
+	@Test
+	public void shouldNotFlushWithNothingPending() {
+		assertFalse(controller.isDue(1000, 0));
+	}
+
+	@Test
+	public void shouldShrinkBatchesToMeetLatencyTarget() {
+		controller.written(1000, millis(1000));
+		controller.flushed(1000, millis(1));
+
+		assertEquals(100, controller.batchSize());
+	}
+
+	@Test
+	public void shouldNotGrowBatchesBeyondMaximum() {
+		controller.written(1000, millis(10));
+		controller.flushed(1000, millis(1));
+
+		assertEquals(1000, controller.batchSize());
+	}
+
+	@Test
+	public void shouldBackOffWhenFlushesAreSlow() {
+		controller.flushed(1000, millis(300));
+		assertEquals(600, controller.interval());
+
+		controller.flushed(2000, millis(5000));
+		assertEquals(1000, controller.interval());
+	}
+
+	@Test
+	public void shouldFlushSoonerWhenArrivalsFillBatches() {
+		controller.flushed(1000, millis(300));
+		controller.isDue(1000, 0);
+
+		for (int i = 0; i < 20000; i++) {
+			controller.arrived();
+		}
+
+		assertTrue(controller.isDue(1100, 20000));
+	}
+
+	@Test
+	public void shouldKeepFlushesToHalfTheTimeWhenArrivalsAreFast() {
+		controller.flushed(1000, millis(300));
+		controller.isDue(1000, 0);
+
+		for (int i = 0; i < 20000; i++) {
+			controller.arrived();
+		}
+		controller.isDue(1100, 1);
+
+		assertEquals(600, controller.interval());
+		assertFalse(controller.isDue(1500, 1));
+		assertTrue(controller.isDue(1600, 1));
+	}
+
+	@Test
+	public void shouldBeDueAsSoonAsEveryPartitionHasAFullBatch() {
+		controller.isDue(1000, 1);
+		controller.flushed(1000, millis(1));
+
+		assertFalse(controller.isDue(1001, 1999));
+		assertTrue(controller.isDue(1001, 2000));
+	}
+
+	private static long millis(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+}
@@ -0,0 +1,126 @@
+package com.workshare.micro.api.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.MultiRowWriter;
+import com.workshare.micro.api.entity.persistence.PartialWriteException;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class MultiRowWriterTest {
+
+	private EntityDao dao;
+
+	@Before
+	public void setup() {
+		dao = mock(EntityDao.class);
+	}
+
+	@Test
+	public void shouldWriteJdbcBatchWhenDisabled() {
+		List<Entity> entities = entities(3, 10);
+
+		new MultiRowWriter(1, 0).write(dao, entities);
+
+		verify(dao).createBatch(entities);
+		verify(dao, never()).createRows(any(Collection.class));
+	}
+
+	@Test
+	public void shouldSplitStatementsByRows() {
+		new MultiRowWriter(2, 0).write(dao, entities(5, 10));
+
+		assertEquals(Arrays.asList(2, 2), sizes());
+		verify(dao).create(any(Entity.class));
+	}
+
+	@Test
+	public void shouldSplitStatementsByBytes() {
+		new MultiRowWriter(100, 7000).write(dao, entities(6, 1000));
+
+		assertEquals(Arrays.asList(2, 2, 2), sizes());
+	}
+
+	@Test
+	public void shouldWriteOversizedRowOnItsOwn() {
+		new MultiRowWriter(100, 100).write(dao, entities(2, 1000));
+
+		verify(dao, never()).createRows(any(Collection.class));
+		ArgumentCaptor<Entity> rows = ArgumentCaptor.forClass(Entity.class);
+		verify(dao, times(2)).create(rows.capture());
+	}
+
+	@Test
+	public void shouldStayWithinParameterLimit() {
+		new MultiRowWriter(100000, 0).write(dao, entities(20000, 1));
+
+		assertEquals(Arrays.asList(16383, 3617), sizes());
+	}
+
+	@Test
+	public void shouldReportEntitiesStoredBeforeFailedStatement() {
+		List<Entity> entities = entities(5, 10);
+		when(dao.createRows(any(Collection.class))).thenReturn(2).thenThrow(
+				new RuntimeException("boom"));
+
+		try {
+			new MultiRowWriter(2, 0).write(dao, entities);
+			fail();
+		} catch (PartialWriteException expected) {
+			assertEquals(entities.subList(0, 2), expected.getWritten());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRethrowFailureOfFirstStatement() {
+		doThrow(new IllegalStateException("boom")).when(dao).createRows(
+				any(Collection.class));
+
+		new MultiRowWriter(2, 0).write(dao, entities(5, 10));
+	}
+
+	private List<Integer> sizes() {
+		ArgumentCaptor<Collection> rows = ArgumentCaptor
+				.forClass(Collection.class);
+		verify(dao, atLeastOnce()).createRows(
+				rows.capture());
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (Collection each : rows.getAllValues()) {
+			sizes.add(each.size());
+		}
+		return sizes;
+	}
+
+	private List<Entity> entities(int count, int contentLength) {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < contentLength; i++) {
+			content.append('x');
+		}
+		List<Entity> entities = new ArrayList<Entity>();
+		for (int i = 0; i < count; i++) {
+			entities.add(new Entity("id" + i, content.toString(), new Date(),
+					"user"));
+		}
+		return entities;
+	}
+}
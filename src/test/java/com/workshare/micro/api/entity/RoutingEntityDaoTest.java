@@ -0,0 +1,194 @@
+package com.workshare.micro.api.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+import com.codahale.metrics.MetricRegistry;
+import com.googlecode.flyway.core.Flyway;
+import com.workshare.micro.api.entity.model.Entity;
+import com.workshare.micro.api.entity.persistence.RoutingEntityDao;
+import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+
+public class RoutingEntityDaoTest {
+
+	private JdbcConnectionPool primaryPool;
+	private JdbcConnectionPool replicaPool;
+	private Handle primary;
+	private Handle replica;
+	private MicroConfig config;
+	private Monitor monitor;
+	private RoutingEntityDao dao;
+
+	@Before
+	public void setup() {
+		primaryPool = JdbcConnectionPool.create("jdbc:h2:mem:primary", "sa",
+				"");
+		replicaPool = JdbcConnectionPool.create("jdbc:h2:mem:replica", "sa",
+				"");
+		primary = migrate(primaryPool);
+		replica = migrate(replicaPool);
+
+		monitor = mock(Monitor.class);
+		config = mock(MicroConfig.class);
+		when(config.replicaLagMax()).thenReturn(60000L);
+		when(config.replicaRetry()).thenReturn(60000L);
+
+		makeTheDao();
+	}
+
+	@After
+	public void teardown() {
+		primary.execute("DROP ALL OBJECTS");
+		replica.execute("DROP ALL OBJECTS");
+		primary.close();
+		replica.close();
+		primaryPool.dispose();
+		replicaPool.dispose();
+	}
+
+	private Handle migrate(JdbcConnectionPool pool) {
+		Flyway flyway = new Flyway();
+		flyway.setDataSource(pool);
+		flyway.migrate();
+		return new DBI(pool).open();
+	}
+
+	private void makeTheDao() {
+		when(monitor.metrics()).thenReturn(new MetricRegistry());
+		dao = new RoutingEntityDao(new DBI(primaryPool)
+				.onDemand(EntityDao.class), Arrays.asList(new DBI(replicaPool)
+				.onDemand(EntityDao.class)), monitor, config);
+	}
+
+	private void insert(Handle handle, String id) {
+		handle.insert(
+				"INSERT INTO ENTITIES (ID, CONTENT, CREATE_DATE, CREATE_USER) VALUES (?, 'content', ?, 'user')",
+				id, new Date());
+	}
+
+	@Test
+	public void shouldWriteToPrimary() {
+		dao.create(new Entity("a", "content", new Date(), "user"));
+
+		assertEquals(1, count(primary));
+		assertEquals(0, count(replica));
+	}
+
+	@Test
+	public void shouldReadFromReplica() {
+		insert(replica, "a");
+
+		assertNotNull(dao.get("a"));
+		assertEquals(1, dao.pageById("", 10).size());
+	}
+
+	@Test
+	public void shouldReadOwnWritesFromPrimary() {
+		dao.create(new Entity("a", "content", new Date(), "user"));
+
+		assertNotNull(dao.get("a"));
+		assertEquals(1, dao.get(Arrays.asList("a", "b")).size());
+	}
+
+	@Test
+	public void shouldReadPagesFromPrimaryAfterRecentWrite() {
+		dao.create(new Entity("a", "content", new Date(), "user"));
+
+		assertEquals(1, dao.pageById("", 10).size());
+		assertEquals(1, dao.pageByCreateDate(new Date(0), "", 10).size());
+		assertEquals(1, dao.get().size());
+		assertNotNull(dao.oldestCreateDate());
+	}
+
+	@Test
+	public void shouldReadPagesFromReplicaOnceLagElapsed() {
+		when(config.replicaLagMax()).thenReturn(0L);
+		makeTheDao();
+
+		dao.create(new Entity("a", "content", new Date(), "user"));
+
+		assertEquals(0, dao.pageById("", 10).size());
+	}
+
+	@Test
+	public void shouldNotReadOwnDeletesFromReplica() {
+		insert(primary, "a");
+		insert(replica, "a");
+
+		dao.delete("a");
+
+		assertNull(dao.get("a"));
+	}
+
+	@Test
+	public void shouldReadFromReplicaOnceLagElapsed() {
+		when(config.replicaLagMax()).thenReturn(0L);
+		makeTheDao();
+
+		dao.create(new Entity("a", "content", new Date(), "user"));
+
+		assertNull(dao.get("a"));
+	}
+
+	@Test
+	public void shouldFailOverToPrimaryWhenReplicaFails() {
+		insert(primary, "a");
+		replica.execute("DROP TABLE ENTITIES");
+
+		assertNotNull(dao.get("a"));
+		assertEquals(0, dao.availableReplicas());
+		assertEquals(1, monitor.metrics().getMeters()
+				.get("entity.routing.failovers").getCount());
+	}
+
+	@Test
+	public void shouldRetryReplicaAfterRetryTime() {
+		when(config.replicaRetry()).thenReturn(0L);
+		makeTheDao();
+		replica.execute("DROP TABLE ENTITIES");
+		dao.get("a");
+
+		assertEquals(1, dao.availableReplicas());
+	}
+
+	@Test
+	public void shouldLoadIdsFromPrimary() {
+		insert(primary, "a");
+
+		ResultIterator<String> ids = dao.ids();
+		try {
+			assertEquals("a", ids.next());
+		} finally {
+			ids.close();
+		}
+	}
+
+	@Test
+	public void shouldCheckStoredIdsOnPrimary() {
+		insert(primary, "a");
+
+		assertEquals(Arrays.asList("a"), dao.ids(Arrays.asList("a", "b")));
+	}
+
+	private int count(Handle handle) {
+		return handle.createQuery("SELECT COUNT(*) FROM ENTITIES")
+				.map(IntegerMapper.FIRST).first();
+	}
+}
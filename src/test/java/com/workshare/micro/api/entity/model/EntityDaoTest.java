@@ -6,6 +6,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -16,10 +17,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.util.StringMapper;
 
 import com.googlecode.flyway.core.Flyway;
 import com.workshare.micro.api.entity.persistence.dao.EntityDao;
+import com.workshare.micro.api.entity.persistence.dao.StatementTimingCollector;
+import com.workshare.micro.api.metrics.Monitor;
 import com.workshare.micro.utils.UUIDGenerator;
 
 public class EntityDaoTest {
@@ -146,6 +151,262 @@ public class EntityDaoTest {
 
 	}
 
+	@Test
+	public void testCreateKeepsGivenCreateDate() {
+		Date date = new Date(1000000000000L);
+		entityDao.create(new Entity("dated", "content", date, "user"));
+
+		assertEquals(date.getTime(), entityDao.get("dated").getCreateDate()
+				.getTime());
+	}
+
+	@Test
+	public void testPageById() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		List<Entity> first = entityDao.pageById("", 5);
+		List<Entity> rest = entityDao.pageById(first.get(4).getId(), 100);
+
+		assertEquals(Arrays.asList("0", "1", "10", "11", "12"), ids(first));
+		assertEquals(10, rest.size());
+		assertEquals("13", rest.get(0).getId());
+	}
+
+	@Test
+	public void testPageByCreateDate() {
+		Date early = new Date(1000000000000L);
+		Date late = new Date(1000000001000L);
+		entityDao.createBatch(Arrays.asList(new Entity("a", "content", late,
+				"user"), new Entity("b", "content", early, "user"),
+				new Entity("c", "content", early, "user")));
+
+		List<Entity> first = entityDao.pageByCreateDate(new Date(0), "", 2);
+		List<Entity> rest = entityDao.pageByCreateDate(first.get(1)
+				.getCreateDate(), first.get(1).getId(), 2);
+
+		assertEquals(Arrays.asList("b", "c"), ids(first));
+		assertEquals(Arrays.asList("a"), ids(rest));
+	}
+
+	@Test
+	public void testPageByCreateDateRange() {
+		entityDao.createBatch(Arrays.asList(
+				new Entity("a", "content", new Date(1000), "user"),
+				new Entity("b", "content", new Date(2000), "user"),
+				new Entity("c", "content", new Date(2000), "user"),
+				new Entity("d", "content", new Date(3000), "user")));
+
+		List<Entity> first = entityDao.pageByCreateDate(new Date(2000), "",
+				new Date(3000), 1);
+		List<Entity> rest = entityDao.pageByCreateDate(first.get(0)
+				.getCreateDate(), first.get(0).getId(), new Date(3000), 10);
+
+		assertEquals(Arrays.asList("b"), ids(first));
+		assertEquals(Arrays.asList("c"), ids(rest));
+	}
+
+	@Test
+	public void testPageByUser() {
+		entityDao.createBatch(Arrays.asList(
+				new Entity("a", "content", new Date(1000), "user"),
+				new Entity("b", "content", new Date(2000), "other"),
+				new Entity("c", "content", new Date(2000), "user"),
+				new Entity("d", "content", new Date(3000), "user")));
+
+		List<Entity> page = entityDao.pageByUser("user", new Date(0), "",
+				new Date(3000), 10);
+
+		assertEquals(Arrays.asList("a", "c"), ids(page));
+	}
+
+	@Test
+	public void testPagedQueriesUseIndexes() {
+		assertTrue(explain(EntityDao.selectPageByUser).contains(
+				"IDX_ENTITIES_USER_DATE"));
+		assertTrue(explain(EntityDao.selectPageByCreateDateRange).contains(
+				"IDX_ENTITIES_DATE"));
+		assertTrue(explain(EntityDao.selectPageByCreateDate).contains(
+				"IDX_ENTITIES_DATE"));
+		assertTrue(explain(EntityDao.selectIdsExpired).contains(
+				"IDX_ENTITIES_DATE"));
+	}
+
+	private String explain(String sql) {
+		return h.createQuery("EXPLAIN " + sql).bind("createUser", "user")
+				.bind("date", new Date(0)).bind("after", "")
+				.bind("before", new Date(3000)).bind("limit", 10)
+				.map(StringMapper.FIRST).first();
+	}
+
+	private List<String> ids(List<Entity> entities) {
+		List<String> ids = new ArrayList<String>();
+		for (Entity each : entities) {
+			ids.add(each.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testDeleteBatch() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		entityDao.deleteBatch(Arrays.asList("3", "7", "nonexistent"));
+
+		assertEquals(13, entityDao.get().size());
+		assertNull(entityDao.get("7"));
+	}
+
+	@Test
+	public void testGetByIds() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		List<String> ids = ids(entityDao.get(Arrays.asList("3", "7",
+				"nonexistent")));
+
+		assertEquals(2, ids.size());
+		assertTrue(ids.containsAll(Arrays.asList("3", "7")));
+		assertTrue(entityDao.get(new ArrayList<String>()).isEmpty());
+	}
+
+	@Test
+	public void testStoredIds() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		List<String> ids = entityDao.ids(Arrays.asList("3", "7",
+				"nonexistent"));
+
+		assertEquals(2, ids.size());
+		assertTrue(ids.containsAll(Arrays.asList("3", "7")));
+	}
+
+	@Test
+	public void testDeleteByIds() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		int deleted = entityDao.delete(Arrays.asList("3", "7", "nonexistent"));
+
+		assertEquals(2, deleted);
+		assertEquals(13, entityDao.get().size());
+		assertEquals(0, entityDao.delete(new ArrayList<String>()));
+	}
+
+	@Test
+	public void testIdsCreatedBefore() {
+		entityDao.createBatch(Arrays.asList(
+				new Entity("a", "a", new Date(1000), "user"),
+				new Entity("b", "b", new Date(1000), "other"),
+				new Entity("c", "c", new Date(1000), "user"),
+				new Entity("d", "d", new Date(5000), "user")));
+
+		assertEquals(Arrays.asList("a", "b"),
+				entityDao.idsCreatedBefore(new Date(2000), null, "", 2));
+		assertEquals(Arrays.asList("c"),
+				entityDao.idsCreatedBefore(new Date(2000), null, "b", 2));
+		assertEquals(Arrays.asList("a", "c"),
+				entityDao.idsCreatedBefore(new Date(2000), "user", "", 10));
+	}
+
+	@Test
+	public void testIdsExpired() {
+		entityDao.createBatch(Arrays.asList(
+				new Entity("a", "a", new Date(3000), "user"),
+				new Entity("b", "b", new Date(1000), "user"),
+				new Entity("c", "c", new Date(2000), "user"),
+				new Entity("d", "d", new Date(5000), "user")));
+
+		assertEquals(Arrays.asList("b", "c"),
+				entityDao.idsExpired(new Date(4000), 2));
+		assertEquals(Arrays.asList("b", "c", "a"),
+				entityDao.idsExpired(new Date(4000), 10));
+	}
+
+	@Test
+	public void testOldestCreateDate() {
+		assertNull(entityDao.oldestCreateDate());
+
+		entityDao.createBatch(Arrays.asList(
+				new Entity("a", "a", new Date(3000), "user"),
+				new Entity("b", "b", new Date(1000), "user")));
+
+		assertEquals(1000, entityDao.oldestCreateDate().getTime());
+	}
+
+	@Test
+	public void testStatementsAreTimedByName() {
+		Monitor monitor = new Monitor();
+		DBI timed = new DBI(ds);
+		timed.setTimingCollector(new StatementTimingCollector(monitor,
+				"statement", EntityDao.class));
+		EntityDao timedDao = timed.open(EntityDao.class);
+
+		timedDao.create(entity);
+		timedDao.get(entity.getId());
+		timedDao.get(entity.getId());
+		timedDao.close();
+
+		assertEquals(1, monitor.metrics().getTimers().get("statement.create")
+				.getCount());
+		assertEquals(2,
+				monitor.metrics().getTimers().get("statement.selectById")
+						.getCount());
+	}
+
+	@Test
+	public void testCreateRows() {
+		generateEntityList(15);
+		entityList.set(0, new Entity("0", "0", null, "0"));
+
+		int created = entityDao.createRows(entityList);
+
+		assertEquals(15, created);
+		assertEquals(15, entityDao.get().size());
+		assertEquals("7", entityDao.get("7").getContent());
+		assertNotNull(entityDao.get("0").getCreateDate());
+	}
+
+	@Test
+	public void testStream() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		List<Entity> entities = new ArrayList<Entity>();
+		ResultIterator<Entity> iterator = entityDao.stream(4);
+		try {
+			while (iterator.hasNext()) {
+				entities.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+
+		assertEquals(15, entities.size());
+		assertTrue(entities.containsAll(entityList));
+	}
+
+	@Test
+	public void testIds() {
+		generateEntityList(15);
+		entityDao.createBatch(entityList);
+
+		List<String> ids = new ArrayList<String>();
+		ResultIterator<String> iterator = entityDao.ids();
+		try {
+			while (iterator.hasNext()) {
+				ids.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+
+		assertEquals(15, ids.size());
+		assertTrue(ids.contains("7"));
+	}
+
 	@Test
 	public void testGetNonExistentToken() {
 		Entity token = entityDao.get("nonexistent");
@@ -0,0 +1,95 @@
+package com.workshare.micro.api.entity.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+public class EntityJsonModuleTest {
+
+	private ObjectMapper plain;
+	private ObjectMapper mapper;
+
+	@Before
+	public void setup() {
+		plain = configure(new ObjectMapper());
+		mapper = configure(new ObjectMapper());
+		mapper.registerModule(new EntityJsonModule());
+	}
+
+	private static ObjectMapper configure(ObjectMapper mapper) {
+		mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS,
+				false);
+		mapper.configure(
+				DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		return mapper;
+	}
+
+	@Test
+	public void shouldWriteEntitiesAsTheMapperDoes() throws Exception {
+		Entity full = new Entity("id", "\"quoted\" \u00e8\n", new Date(
+				1234567890123L), "user");
+		Entity sparse = new Entity("id", null, null, null);
+
+		assertEquals(plain.writeValueAsString(full),
+				mapper.writeValueAsString(full));
+		assertEquals(plain.writeValueAsString(sparse),
+				mapper.writeValueAsString(sparse));
+		assertEquals(plain.writeValueAsString(Arrays.asList(full, sparse)),
+				mapper.writeValueAsString(Arrays.asList(full, sparse)));
+	}
+
+	@Test
+	public void shouldWriteTimestampsWhenConfigured() throws Exception {
+		Entity entity = new Entity("id", "content", new Date(1000), "user");
+		plain.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, true);
+		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, true);
+
+		assertEquals(plain.writeValueAsString(entity),
+				mapper.writeValueAsString(entity));
+	}
+
+	@Test
+	public void shouldReadRequestsAsTheMapperDoes() throws Exception {
+		for (String json : Arrays.asList("{\"content\":\"text\"}",
+				"{\"content\":12}", "{\"content\":true}",
+				"{\"other\":{\"a\":[1]},\"content\":\"text\"}", "{}",
+				"{\"content\":null}")) {
+			assertEquals(json,
+					plain.readValue(json, EntityRequest.class).content,
+					mapper.readValue(json, EntityRequest.class).content);
+		}
+	}
+
+	@Test
+	public void shouldReadInvalidRequestToItsEnd() throws Exception {
+		JsonParser parser = mapper.getFactory().createParser(
+				"{\"content\":[\"a\"],\"other\":1} {\"content\":\"next\"}");
+		parser.nextToken();
+		try {
+			mapper.readValue(parser, EntityRequest.class);
+			fail();
+		} catch (JsonMappingException expected) {
+		}
+
+		assertEquals(JsonToken.END_OBJECT, parser.getCurrentToken());
+		parser.nextToken();
+		assertEquals("next",
+				mapper.readValue(parser, EntityRequest.class).content);
+		assertNull(parser.nextToken());
+	}
+}
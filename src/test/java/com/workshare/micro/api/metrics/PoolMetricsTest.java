@@ -0,0 +1,67 @@
+package com.workshare.micro.api.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.jolbox.bonecp.BoneCPDataSource;
+
+public class PoolMetricsTest {
+
+	private BoneCPDataSource dataSource;
+	private Monitor monitor;
+	private PoolMetrics metrics;
+
+	@Before
+	public void setup() throws Exception {
+		Class.forName("org.h2.Driver");
+		dataSource = new BoneCPDataSource();
+		dataSource.setJdbcUrl("jdbc:h2:mem:pool");
+		dataSource.setUsername("sa");
+		dataSource.setPassword("");
+		dataSource.setPartitionCount(1);
+		dataSource.setMinConnectionsPerPartition(2);
+		dataSource.setMaxConnectionsPerPartition(2);
+
+		monitor = new Monitor();
+		metrics = new PoolMetrics(dataSource, monitor, "pool");
+		dataSource.setConnectionHook(metrics);
+	}
+
+	@After
+	public void teardown() {
+		dataSource.close();
+	}
+
+	@Test
+	public void shouldGaugeLeasedConnectionsAsActive() throws Exception {
+		Connection connection = metrics.openConnection();
+
+		assertEquals(1, gauge("pool.active"));
+		assertEquals(1, gauge("pool.idle"));
+
+		connection.close();
+
+		assertEquals(0, gauge("pool.active"));
+		assertEquals(2, gauge("pool.idle"));
+	}
+
+	@Test
+	public void shouldTimeWaitForConnections() throws Exception {
+		metrics.openConnection().close();
+		metrics.openConnection().close();
+
+		assertEquals(2, monitor.metrics().getTimers().get("pool.wait")
+				.getCount());
+	}
+
+	private int gauge(String name) {
+		MetricRegistry registry = monitor.metrics();
+		return (Integer) registry.getGauges().get(name).getValue();
+	}
+}
@@ -0,0 +1,88 @@
+package com.workshare.micro.api.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class ThreadPoolMetricsTest {
+
+	private BlockingQueue<Runnable> queue;
+	private QueuedThreadPool pool;
+	private Monitor monitor;
+	private CountDownLatch done;
+
+	@Before
+	public void setup() throws Exception {
+		queue = new ArrayBlockingQueue<Runnable>(10);
+		pool = new QueuedThreadPool(queue);
+		pool.setMinThreads(1);
+		pool.setMaxThreads(1);
+		pool.start();
+
+		monitor = new Monitor();
+		new ThreadPoolMetrics(pool, queue, monitor, "threads");
+		done = new CountDownLatch(1);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		done.countDown();
+		pool.stop();
+	}
+
+	@Test
+	public void shouldGaugeThreadsAndQueuedJobs() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		pool.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				await();
+			}
+		});
+		started.await();
+		pool.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				await();
+			}
+		});
+
+		assertEquals(1, gauge("threads.threads"));
+		assertEquals(1, gauge("threads.active"));
+		assertEquals(0, gauge("threads.idle"));
+		assertEquals(1, gauge("threads.max"));
+		assertEquals(1, gauge("threads.queued"));
+	}
+
+	@Test
+	public void shouldSkipQueueWhenUnknown() {
+		Monitor other = new Monitor();
+		new ThreadPoolMetrics(pool, null, other, "threads");
+
+		assertNull(other.metrics().getGauges().get("threads.queued"));
+	}
+
+	private void await() {
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int gauge(String name) {
+		MetricRegistry registry = monitor.metrics();
+		return (Integer) registry.getGauges().get(name).getValue();
+	}
+}
@@ -0,0 +1,117 @@
+package com.workshare.micro.api.metrics.provider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Date;
+
+import javax.validation.Validator;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.workshare.micro.api.JacksonJsonProvider;
+import com.workshare.micro.api.entity.model.Entity;
+
+@SuppressWarnings("unchecked")
+public class ValidatingJacksonJsonProviderTest {
+
+    private JacksonJsonProvider delegate;
+    private ValidatingJacksonJsonProvider provider;
+    private Entity entity;
+
+    @Before
+    public void setup() {
+        delegate = spy(new JacksonJsonProvider());
+        provider = new ValidatingJacksonJsonProvider(delegate, mock(Validator.class));
+        entity = new Entity("id", "content", new Date(1000), "user");
+    }
+
+    @Test
+    public void shouldSerializeEntityOnceAndReuseItsJson() throws Exception {
+        byte[] first = write(entity);
+        byte[] second = write(entity);
+
+        assertArrayEquals(first, second);
+        assertArrayEquals(first, JacksonJsonProvider.mapper().writeValueAsBytes(entity));
+        verifyWrites(entity, 1);
+        assertEquals(first.length, provider.getSize(entity, Entity.class, Entity.class, new Annotation[0], MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    @Test
+    public void shouldNotReuseJsonWrittenByAnotherMapper() throws Exception {
+        delegate.setMapper(new ObjectMapper());
+        write(entity);
+        delegate.setMapper(JacksonJsonProvider.mapper());
+        write(entity);
+        write(entity);
+
+        verifyWrites(entity, 2);
+    }
+
+    @Test
+    public void shouldNotReuseJsonOfOtherMediaTypes() throws Exception {
+        write(entity, MediaType.valueOf("text/json"));
+        write(entity, MediaType.valueOf("text/json"));
+
+        verifyWrites(entity, 2);
+        assertEquals(-1, provider.getSize(entity, Entity.class, Entity.class, new Annotation[0], MediaType.valueOf("text/json")));
+    }
+
+    @Test
+    public void shouldWriteWithTheSharedMapperWhenInjected() throws Exception {
+        provider = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Validator.class).toInstance(mock(Validator.class));
+            }
+        }).getInstance(ValidatingJacksonJsonProvider.class);
+        entity = new Entity("id", "content", new Date(1000), null);
+
+        String json = new String(write(entity), "UTF-8");
+
+        assertEquals(new String(JacksonJsonProvider.mapper().writeValueAsBytes(entity), "UTF-8"), json);
+        assertTrue(json.contains("\"1970-01-01T00:00:01.000+0000\""));
+        assertFalse(json.contains("createUser"));
+    }
+
+    @Test
+    public void shouldSerializeOtherObjectsEveryTime() throws Exception {
+        write("text");
+        write("text");
+
+        verifyWrites("text", 2);
+    }
+
+    private void verifyWrites(Object value, int count) throws Exception {
+        verify(delegate, times(count)).writeTo(eq(value), any(Class.class), any(Type.class), any(Annotation[].class), any(MediaType.class),
+                any(MultivaluedMap.class), any(OutputStream.class));
+    }
+
+    private byte[] write(Object value) throws Exception {
+        return write(value, MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    private byte[] write(Object value, MediaType mediaType) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        provider.writeTo(value, value.getClass(), value.getClass(), new Annotation[0], mediaType, null, output);
+        return output.toByteArray();
+    }
+}
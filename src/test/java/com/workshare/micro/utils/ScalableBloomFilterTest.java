@@ -0,0 +1,64 @@
+package com.workshare.micro.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ScalableBloomFilterTest {
+
+	@Test
+	public void shouldNotContainKeysNeverAdded() {
+		ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01);
+
+		assertFalse(filter.mightContain("missing"));
+	}
+
+	@Test
+	public void shouldContainEveryKeyAddedWhileGrowing() {
+		ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+
+		for (int i = 0; i < 10000; i++) {
+			filter.put("key" + i);
+		}
+
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("key" + i));
+		}
+	}
+
+	@Test
+	public void shouldStayBelowTargetFalsePositiveRateWhileGrowing() {
+		ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.put("key" + i);
+		}
+
+		int positives = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (filter.mightContain("other" + i)) {
+				positives++;
+			}
+		}
+
+		assertTrue("fpp was " + positives / 100000.0, positives < 1000);
+		assertTrue(filter.expectedFpp() < 0.01);
+	}
+
+	@Test
+	public void shouldCountDistinctKeys() {
+		ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+
+		filter.put("a");
+		filter.put("a");
+		filter.put("b");
+
+		assertEquals(2, filter.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectInvalidFalsePositiveRate() {
+		new ScalableBloomFilter(100, 1.5);
+	}
+}
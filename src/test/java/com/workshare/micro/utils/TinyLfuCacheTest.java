@@ -0,0 +1,98 @@
+package com.workshare.micro.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+
+	private List<String> evicted;
+	private TinyLfuCache.EvictionListener<String, String> listener;
+
+	@Before
+	public void setup() {
+		evicted = new ArrayList<String>();
+		listener = new TinyLfuCache.EvictionListener<String, String>() {
+			@Override
+			public void evicted(String key, String value) {
+				evicted.add(key);
+			}
+		};
+	}
+
+	@Test
+	public void shouldReturnCachedValue() {
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+				100, listener);
+
+		cache.put("a", "A");
+
+		assertEquals("A", cache.get("a"));
+	}
+
+	@Test
+	public void shouldNotCacheAnythingWithZeroCapacity() {
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+				0, listener);
+
+		cache.put("a", "A");
+
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void shouldRemoveValue() {
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+				100, listener);
+		cache.put("a", "A");
+
+		cache.remove("a");
+
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void shouldNeverExceedCapacity() {
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+				500, listener);
+
+		for (int i = 0; i < 10000; i++) {
+			cache.put("key" + i, "value" + i);
+		}
+
+		assertEquals(500, cache.size());
+		assertEquals(10000 - 500, evicted.size());
+	}
+
+	@Test
+	public void shouldKeepFrequentEntriesDuringScans() {
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+				100, listener);
+		for (int i = 0; i < 50; i++) {
+			cache.put("hot" + i, "value");
+		}
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				cache.get("hot" + i);
+			}
+		}
+
+		for (int i = 0; i < 5000; i++) {
+			cache.put("scan" + i, "value");
+			cache.get("hot" + (i % 50));
+		}
+
+		for (int i = 0; i < 50; i++) {
+			assertNotNull("hot" + i + " was evicted", cache.get("hot" + i));
+		}
+		assertTrue(cache.size() <= 100);
+	}
+}
@@ -0,0 +1,168 @@
+package com.workshare.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.workshare.micro.api.metrics.Monitor;
+import com.workshare.micro.config.MicroConfig;
+
+public class AdmissionFilterTest {
+
+    private AdmissionFilter filter;
+    private MicroConfig config;
+    private Monitor monitor;
+
+    @Before
+    public void setup() {
+        config = mock(MicroConfig.class);
+        when(config.httpRequestsActive()).thenReturn(1);
+        when(config.httpRequestsWait()).thenReturn(1000L);
+        monitor = new Monitor();
+        filter = new AdmissionFilter();
+        filter.init(config, monitor);
+    }
+
+    @Test
+    public void shouldAdmitEveryRequestWhenUnlimited() throws Exception {
+        when(config.httpRequestsActive()).thenReturn(0);
+        filter = new AdmissionFilter();
+        filter.init(config, new Monitor());
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        FilterChain chain = mock(FilterChain.class);
+
+        filter.doFilter(request, mock(HttpServletResponse.class), chain);
+
+        verify(chain).doFilter(eq(request), any(ServletResponse.class));
+    }
+
+    @Test
+    public void shouldSuspendRequestsBeyondLimitAndResumeThemInTurn() throws Exception {
+        final Continuation waiting = continuation();
+        final HttpServletRequest second = request(waiting);
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                filter.doFilter(second, mock(HttpServletResponse.class), mock(FilterChain.class));
+                when(waiting.isSuspended()).thenReturn(true);
+            }
+        };
+
+        filter.doFilter(request(continuation()), mock(HttpServletResponse.class), chain);
+
+        verify(waiting).suspend();
+        verify(waiting).setTimeout(1000L);
+        verify(waiting).resume();
+        assertEquals(0, monitor.metrics().getGauges().get("http.requests.suspended").getValue());
+    }
+
+    @Test
+    public void shouldAnswerUnavailableWhenWaitExpired() throws Exception {
+        Continuation expired = continuation();
+        when(expired.isExpired()).thenReturn(true);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        FilterChain chain = mock(FilterChain.class);
+
+        filter.doFilter(request(expired), response, chain);
+
+        verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(chain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        assertEquals(1, monitor.metrics().getMeters().get("http.requests.expired").getCount());
+    }
+
+    @Test
+    public void shouldHandThePermitToTheResumedRequest() throws Exception {
+        final Continuation waiting = continuation();
+        final HttpServletRequest second = request(waiting);
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                filter.doFilter(second, mock(HttpServletResponse.class), mock(FilterChain.class));
+            }
+        };
+        filter.doFilter(request(continuation()), mock(HttpServletResponse.class), chain);
+        verify(waiting).resume();
+
+        Continuation newcomer = continuation();
+        FilterChain newcomerChain = mock(FilterChain.class);
+        filter.doFilter(request(newcomer), mock(HttpServletResponse.class), newcomerChain);
+        FilterChain secondChain = mock(FilterChain.class);
+        filter.doFilter(second, mock(HttpServletResponse.class), secondChain);
+
+        verify(newcomerChain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        verify(newcomer).suspend();
+        verify(secondChain).doFilter(eq(second), any(ServletResponse.class));
+        verify(waiting, times(1)).setTimeout(1000L);
+        verify(newcomer).resume();
+    }
+
+    @Test
+    public void shouldRunRequestGrantedThePermitAsItExpires() throws Exception {
+        final Continuation waiting = continuation();
+        final HttpServletRequest second = request(waiting);
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                filter.doFilter(second, mock(HttpServletResponse.class), mock(FilterChain.class));
+            }
+        };
+        filter.doFilter(request(continuation()), mock(HttpServletResponse.class), chain);
+        when(waiting.isExpired()).thenReturn(true);
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        FilterChain secondChain = mock(FilterChain.class);
+        filter.doFilter(second, response, secondChain);
+
+        verify(secondChain).doFilter(eq(second), any(ServletResponse.class));
+        verify(response, never()).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private static Continuation continuation() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        Continuation continuation = mock(Continuation.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                attributes.put((String)invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(continuation).setAttribute(anyString(), any());
+        when(continuation.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        });
+        return continuation;
+    }
+
+    private static HttpServletRequest request(Continuation continuation) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getAttribute(Continuation.ATTRIBUTE)).thenReturn(continuation);
+        return request;
+    }
+}